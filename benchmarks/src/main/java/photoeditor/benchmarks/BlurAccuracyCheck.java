@@ -0,0 +1,271 @@
+// Checks GaussianBlurEngine against a direct 2-D Gaussian convolution with clamped edges, computed here in doubles
+// the slow obvious way. EXACT has to match to within 1 per channel (it rounds once between its two passes, the
+// reference never does).
+//
+// BOX is only an approximation of the Gaussian, so its limits come from the approximation itself rather than from
+// today's output. First it is held to a model of what it should compute: three box passes each way, radii chosen so
+// their variances add up to sigma^2, every pass clamping at the edges, all in doubles. The engine rounds after each of
+// its six passes and the later passes only average those errors, so it can be at most 6 x 0.5 = 3 off the model, and on
+// average no worse than the RMS of six independent roundings, sqrt(6 / 12) = 0.71, plus 0.25 for rounding the model
+// to compare with. Then it is held to the Gaussian:
+// an output differs from the reference by at most 255 / 2 times the L1 distance between the two 2-D kernels at that
+// pixel (both add up to 1), and that distance is at most the horizontal 1-D distance plus the vertical one. Those are
+// worked out per position, so each pixel gets its own limit: about 13 in the middle of the image, and up to about 100
+// at the edges, where clamping each box pass separately makes the box kernel lopsided. Each limit adds 3 for the
+// engine's rounding and 0.5 for the reference's, and the mean error is held to the mean of the limits.
+//
+// Not a JMH benchmark, and it needs nothing but the editor's classes. With the IntelliJ build in out/production:
+//     javac -d out/benchmarks -cp out/production/PhotoEditor benchmarks/src/main/java/photoeditor/benchmarks/{BlurAccuracyCheck,Editor,TestImages}.java
+//     java -cp out/production/PhotoEditor:out/benchmarks photoeditor.benchmarks.BlurAccuracyCheck
+// or from the Maven build, java -cp target/benchmarks.jar photoeditor.benchmarks.BlurAccuracyCheck. It exits with
+// status 1 if any check fails.
+
+package photoeditor.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+public final class BlurAccuracyCheck {
+    private static final double[] EXACT_SIGMAS = {0.5, 1, 2.5, 3, 6};
+    private static final double[] BOX_SIGMAS = {3, 5, 10, 20};
+    private static final int EXACT_MAX_ERROR = 1;
+    private static final int BOX_PASSES = 3;
+    // Three passes each way, each rounding by at most 0.5.
+    private static final int BOX_ROUNDINGS = 2 * BOX_PASSES;
+    private static final int BOX_MODEL_MAX_ERROR = BOX_ROUNDINGS / 2;
+    // The RMS of that many independent roundings (variance 1/12 each), plus 0.25 for rounding the model itself.
+    private static final double BOX_MODEL_MEAN_ERROR = Math.sqrt(BOX_ROUNDINGS / 12.0) + 0.25;
+
+    private BlurAccuracyCheck() {
+    }
+
+    public static void main(String[] args) {
+        BufferedImage photo = TestImages.create(0.1, "INT_ARGB");
+        BufferedImage noise = noise(320, 240);
+        boolean passed = true;
+        for (double sigma : EXACT_SIGMAS) {
+            for (BufferedImage image : new BufferedImage[]{photo, noise}) {
+                BufferedImage blurred = Editor.blur(sigma, "EXACT").apply(image);
+                passed &= check("EXACT", image == photo ? "photo" : "noise", sigma, "Gaussian", image, blurred,
+                        reference(image, sigma), EXACT_MAX_ERROR, limits(image, null, null, EXACT_MAX_ERROR));
+            }
+        }
+        for (double sigma : BOX_SIGMAS) {
+            for (BufferedImage image : new BufferedImage[]{photo, noise}) {
+                String name = image == photo ? "photo" : "noise";
+                int width = image.getWidth();
+                int height = image.getHeight();
+                double[][] boxX = boxMatrix(width, sigma);
+                double[][] boxY = boxMatrix(height, sigma);
+                BufferedImage blurred = Editor.blur(sigma, "BOX").apply(image);
+                passed &= check("BOX", name, sigma, "box model", image, blurred, boxModel(image, boxX, boxY),
+                        BOX_MODEL_MEAN_ERROR, limits(image, null, null, BOX_MODEL_MAX_ERROR));
+                double[] limits = limits(image, l1(boxX, gaussianMatrix(width, sigma)), l1(boxY, gaussianMatrix(height, sigma)),
+                        BOX_MODEL_MAX_ERROR + 0.5);
+                passed &= check("BOX", name, sigma, "Gaussian", image, blurred, reference(image, sigma),
+                        Arrays.stream(limits).average().orElse(0), limits);
+            }
+        }
+        System.out.println(passed ? "All blur checks passed" : "Some blur checks FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // maxLimits holds each pixel's own limit on its worst channel error.
+    private static boolean check(String mode, String name, double sigma, String against, BufferedImage image,
+                                 BufferedImage blurred, int[] expected, double meanLimit, double[] maxLimits) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long total = 0;
+        int worst = 0;
+        int worstLimit = 0;
+        int over = 0;
+        boolean alphaKept = true;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int actual = blurred.getRGB(x, y);
+                int wanted = expected[y * width + x];
+                int limit = (int) Math.floor(maxLimits[y * width + x]);
+                alphaKept &= actual >>> 24 == image.getRGB(x, y) >>> 24;
+                int pixelWorst = 0;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int error = Math.abs((actual >> shift & 0xFF) - (wanted >> shift & 0xFF));
+                    total += error;
+                    pixelWorst = Math.max(pixelWorst, error);
+                }
+                if (pixelWorst > limit) {
+                    over++;
+                }
+                if (pixelWorst > worst) {
+                    worst = pixelWorst;
+                    worstLimit = limit;
+                }
+            }
+        }
+        double mean = total / (3.0 * width * height);
+        boolean passed = mean <= meanLimit && over == 0 && alphaKept;
+        System.out.printf("%-5s %s sigma %4.1f vs %-9s: mean error %.3f (limit %.2f), worst %d (limit there %d)%s%s  %s%n",
+                mode, name, sigma, against, mean, meanLimit, worst, worstLimit, over == 0 ? "" : ", " + over + " pixels over their limit",
+                alphaKept ? "" : ", alpha changed", passed ? "ok" : "FAILED");
+        return passed;
+    }
+
+    // Per pixel limits: slack, plus 255 / 2 times the L1 distances for its column and row when they are given.
+    private static double[] limits(BufferedImage image, double[] columns, double[] rows, double slack) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] limits = new double[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                limits[y * width + x] = slack + (columns == null ? 0 : 255 / 2.0 * (columns[x] + rows[y]));
+            }
+        }
+        return limits;
+    }
+
+    // Uniformly random colors and alpha: the hardest case for rounding, and for the edges.
+    private static BufferedImage noise(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    // Radii for three boxes whose variances ((2r + 1)^2 - 1) / 12 add up to about sigma^2, widths at most 2 apart.
+    private static int[] boxRadii(double sigma) {
+        double idealWidth = Math.sqrt(12 * sigma * sigma / BOX_PASSES + 1);
+        int lower = (int) Math.floor(idealWidth);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        double idealLowerCount = (12 * sigma * sigma - BOX_PASSES * (lower * lower + 4 * lower + 3)) / (-4.0 * lower - 4);
+        int lowerCount = (int) Math.round(idealLowerCount);
+        int[] radii = new int[BOX_PASSES];
+        for (int i = 0; i < BOX_PASSES; i++) {
+            radii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    // The three box passes along a line of n pixels as one matrix: row x holds the weight of every input pixel in
+    // output x. Each pass clamps at the ends, as the engine's do.
+    private static double[][] boxMatrix(int n, double sigma) {
+        double[][] matrix = new double[n][n];
+        for (int x = 0; x < n; x++) {
+            matrix[x][x] = 1;
+        }
+        for (int radius : boxRadii(sigma)) {
+            double[][] next = new double[n][n];
+            for (int x = 0; x < n; x++) {
+                for (int k = -radius; k <= radius; k++) {
+                    int from = Math.min(Math.max(x + k, 0), n - 1);
+                    for (int j = 0; j < n; j++) {
+                        next[x][j] += matrix[from][j] / (2 * radius + 1);
+                    }
+                }
+            }
+            matrix = next;
+        }
+        return matrix;
+    }
+
+    // The reference's 1-D Gaussian along a line of n pixels, clamped once, as a matrix like boxMatrix's.
+    private static double[][] gaussianMatrix(int n, double sigma) {
+        int radius = (int) Math.ceil(3 * sigma);
+        double sum = 0;
+        for (int d = -radius; d <= radius; d++) {
+            sum += Math.exp(-d * d / (2 * sigma * sigma));
+        }
+        double[][] matrix = new double[n][n];
+        for (int x = 0; x < n; x++) {
+            for (int d = -radius; d <= radius; d++) {
+                matrix[x][Math.min(Math.max(x + d, 0), n - 1)] += Math.exp(-d * d / (2 * sigma * sigma)) / sum;
+            }
+        }
+        return matrix;
+    }
+
+    // The L1 distance between each row of a and the same row of b.
+    private static double[] l1(double[][] a, double[][] b) {
+        double[] distances = new double[a.length];
+        for (int x = 0; x < a.length; x++) {
+            for (int j = 0; j < a.length; j++) {
+                distances[x] += Math.abs(a[x][j] - b[x][j]);
+            }
+        }
+        return distances;
+    }
+
+    // The box model applied to image, rows then columns, rounded only at the end.
+    private static int[] boxModel(BufferedImage image, double[][] boxX, double[][] boxY) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] result = new int[width * height];
+        for (int shift = 0; shift < 24; shift += 8) {
+            double[] rows = new double[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    for (int j = 0; j < width; j++) {
+                        sum += boxX[x][j] * (pixels[y * width + j] >> shift & 0xFF);
+                    }
+                    rows[y * width + x] = sum;
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    for (int j = 0; j < height; j++) {
+                        sum += boxY[y][j] * rows[j * width + x];
+                    }
+                    result[y * width + x] |= (int) Math.round(sum) << shift;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Every output pixel is the weighted sum of the (2r + 1)^2 pixels around it, r = ceil(3 sigma), with weights
+    // exp(-(dx^2 + dy^2) / 2 sigma^2) normalized to add up to 1. Positions off the image read the nearest edge pixel.
+    private static int[] reference(BufferedImage image, double sigma) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int radius = (int) Math.ceil(3 * sigma);
+        double[] weights = new double[(2 * radius + 1) * (2 * radius + 1)];
+        double sum = 0;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                double weight = Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+                weights[(dy + radius) * (2 * radius + 1) + dx + radius] = weight;
+                sum += weight;
+            }
+        }
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] result = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double red = 0;
+                double green = 0;
+                double blue = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    int row = Math.min(Math.max(y + dy, 0), height - 1) * width;
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        int pixel = pixels[row + Math.min(Math.max(x + dx, 0), width - 1)];
+                        double weight = weights[(dy + radius) * (2 * radius + 1) + dx + radius] / sum;
+                        red += (pixel >> 16 & 0xFF) * weight;
+                        green += (pixel >> 8 & 0xFF) * weight;
+                        blue += (pixel & 0xFF) * weight;
+                    }
+                }
+                result[y * width + x] = (int) Math.round(red) << 16 | (int) Math.round(green) << 8 | (int) Math.round(blue);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+// Time to put the current image on screen through CanvasView, the way PhotoCanvas does: a whole frame at fit-to-window
+// zoom (after a zoom or resize, sampled from the pyramid's tiles), and a frame where only a small area of the image
+// changed (a scribble), which drops and rebuilds just the tiles under it. Headless, so frames go into a plain INT_RGB
+// image the size of a typical window instead of video memory.
+
+package photoeditor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class DisplayBenchmark {
+    // About the area one pen stroke segment touches.
+    private static final int SCRIBBLE_SIZE = 64;
+
+    @Param({"1", "12", "50"})
+    public double megapixels;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR"})
+    public String imageType;
+
+    @Param({"1600x900"})
+    public String canvasSize;
+
+    private Editor.View view;
+    private BufferedImage backBuffer;
+    private Graphics2D pen;
+    private Rectangle scribble;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] size = canvasSize.split("x");
+        int canvasWidth = Integer.parseInt(size[0]);
+        int canvasHeight = Integer.parseInt(size[1]);
+        BufferedImage image = TestImages.create(megapixels, imageType);
+        backBuffer = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_RGB);
+        pen = backBuffer.createGraphics();
+        view = Editor.view(image, canvasWidth, canvasHeight);
+        // The first frame builds the pyramid tiles the fitted view samples from; after that they are cached.
+        view.update(pen);
+        scribble = new Rectangle((image.getWidth() - SCRIBBLE_SIZE) / 2, (image.getHeight() - SCRIBBLE_SIZE) / 2,
+                SCRIBBLE_SIZE, SCRIBBLE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pen.dispose();
+    }
+
+    @Benchmark
+    public Rectangle fullFrame() {
+        view.invalidateAll();
+        return view.update(pen);
+    }
+
+    @Benchmark
+    public Rectangle dirtyRect() {
+        view.invalidate(scribble);
+        return view.update(pen);
+    }
+}
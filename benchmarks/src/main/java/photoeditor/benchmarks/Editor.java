@@ -0,0 +1,128 @@
+// The editor's classes live in the unnamed package, which code in a named package can't refer to (and JMH won't
+// generate benchmarks in the unnamed package), so they are looked up by name here, once, during setup.
+
+package photoeditor.benchmarks;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.UnaryOperator;
+
+final class Editor {
+    private Editor() {
+    }
+
+    // Builds the filter chain the same way batch mode does, e.g. "greyscale,pixelate:16,blur:4:box".
+    static UnaryOperator<BufferedImage> filter(String spec) {
+        Object pipeline = call(method("BatchProcessor", "parseFilters", String.class), null, spec);
+        Method apply = method("FilterPipeline", "apply", BufferedImage.class, type("JobProgress"));
+        Object noProgress = field("JobProgress", "NONE");
+        return image -> (BufferedImage) call(apply, pipeline, image, noProgress);
+    }
+
+    // GaussianBlurEngine.blur in the given mode ("EXACT", "BOX" or "AUTO").
+    static UnaryOperator<BufferedImage> blur(double sigma, String mode) {
+        Class<?> modes = type("GaussianBlurEngine$Mode");
+        Method blur = method("GaussianBlurEngine", "blur", BufferedImage.class, double.class, modes);
+        Object constant = call(method("GaussianBlurEngine$Mode", "valueOf", String.class), null, mode);
+        return image -> (BufferedImage) call(blur, null, image, sigma, constant);
+    }
+
+    static void setParallelism(int parallelism) {
+        call(method("TileExecutor", "setParallelism", int.class), null, parallelism);
+    }
+
+    // A CanvasView showing image fitted into width x height, the way PhotoCanvas sets one up.
+    static View view(BufferedImage image, int width, int height) {
+        return new View(image, width, height);
+    }
+
+    // Drives a CanvasView. Headless there is no GraphicsConfiguration for its VolatileImage, so frames are drawn
+    // through update(), the same redraw of the dirty areas validate() does, into whatever pen the caller has.
+    static final class View {
+        private final Object view;
+        private final Method invalidate = method("CanvasView", "invalidate", Rectangle.class);
+        private final Method invalidateAll = method("CanvasView", "invalidateAll");
+        private final Method update = method("CanvasView", "update", Graphics2D.class);
+
+        private View(BufferedImage image, int width, int height) {
+            view = construct("CanvasView");
+            call(method("CanvasView", "setSize", int.class, int.class), view, width, height);
+            call(method("CanvasView", "setImage", BufferedImage.class), view, image);
+        }
+
+        // Marks an area of the image as changed, as a scribble or an undo does.
+        void invalidate(Rectangle imageArea) {
+            call(invalidate, view, imageArea);
+        }
+
+        // Marks the whole view as out of date, as a zoom or a resize does. The pyramid's tiles are kept.
+        void invalidateAll() {
+            call(invalidateAll, view);
+        }
+
+        Rectangle update(Graphics2D pen) {
+            return (Rectangle) call(update, view, pen);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Editor sources are not on the classpath", e);
+        }
+    }
+
+    private static Method method(String type, String name, Class<?>... parameters) {
+        try {
+            Method method = type(type).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object construct(String type) {
+        try {
+            Constructor<?> constructor = type(type).getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object field(String type, String name) {
+        try {
+            Field field = type(type).getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object call(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+// Time to run one filter over a whole image, as the editor's Filter menu (or batch mode) would.
+//
+// Filters are built through batch mode's filter parser, so "colorFilter" here is the same compiled lookup table the
+// menu item uses. "fused" is a point-convolve-point chain, which the pipeline runs as a single banded pass.
+
+package photoeditor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class FilterBenchmark {
+    @Param({"greyscale", "colorFilter", "pixelate", "blurExact", "blurBox", "sharpen", "fused"})
+    public String filter;
+
+    @Param({"1", "12", "50"})
+    public double megapixels;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR"})
+    public String imageType;
+
+    // "all" means one thread per available processor, which is what the editor uses by default.
+    @Param({"1", "4", "all"})
+    public String threads;
+
+    private BufferedImage image;
+    private UnaryOperator<BufferedImage> operation;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Editor.setParallelism(threads.equals("all") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads));
+        image = TestImages.create(megapixels, imageType);
+        operation = Editor.filter(spec(filter));
+    }
+
+    static String spec(String filter) {
+        switch (filter) {
+            case "greyscale": return "greyscale";
+            case "colorFilter": return "colorfilter:255:128:0";
+            case "pixelate": return "pixelate:16";
+            // Sigma 2 is below the exact/box cut-over; sigma 8 would take seconds exactly, so box is measured there.
+            case "blurExact": return "blur:2:exact";
+            case "blurBox": return "blur:8:box";
+            case "sharpen": return "sharpen";
+            case "fused": return "greyscale,sharpen,colorfilter:255:128:0";
+            default: throw new IllegalArgumentException("Unknown filter " + filter);
+        }
+    }
+
+    @Benchmark
+    public BufferedImage apply() {
+        return operation.apply(image);
+    }
+}
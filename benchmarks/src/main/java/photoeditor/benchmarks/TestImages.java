@@ -0,0 +1,65 @@
+// Synthetic 4:3 photos for the benchmarks: smooth gradients with a little noise, so that lookup tables, block means
+// and kernels all see realistic, non-constant data. Seeded, so every fork filters the same pixels.
+
+package photoeditor.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+final class TestImages {
+    private TestImages() {
+    }
+
+    // Image types by the names used in @Param, matching the BufferedImage constants.
+    static int type(String name) {
+        switch (name) {
+            case "INT_RGB": return BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB": return BufferedImage.TYPE_INT_ARGB;
+            // What ImageIO hands back for most JPEGs.
+            case "3BYTE_BGR": return BufferedImage.TYPE_3BYTE_BGR;
+            default: throw new IllegalArgumentException("Unknown image type " + name);
+        }
+    }
+
+    static BufferedImage create(double megapixels, String typeName) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round(width * 3 / 4.0);
+        BufferedImage image = new BufferedImage(width, height, type(typeName));
+        Random random = new Random(42);
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i += 3) {
+                    int rgb = pixel(x, y, width, height, random);
+                    data[i] = (byte) rgb;
+                    data[i + 1] = (byte) (rgb >> 8);
+                    data[i + 2] = (byte) (rgb >> 16);
+                }
+            }
+        } else {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int alpha = image.getType() == BufferedImage.TYPE_INT_ARGB ? 0 : 0xff000000;
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    // For ARGB, vary alpha too so nothing can shortcut opaque pixels.
+                    data[i] = pixel(x, y, width, height, random) | (alpha != 0 ? alpha : (0x80 + (x & 0x7f)) << 24);
+                }
+            }
+        }
+        return image;
+    }
+
+    private static int pixel(int x, int y, int width, int height, Random random) {
+        int noise = random.nextInt(16) - 8;
+        int r = clamp(x * 255 / width + noise);
+        int g = clamp(y * 255 / height + noise);
+        int b = clamp((x + y) * 255 / (width + height) - noise);
+        return r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
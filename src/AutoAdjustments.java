@@ -0,0 +1,57 @@
+// Adjustments worked out from an image's histogram: auto levels, auto contrast and white balance. Each comes out as a
+// ChannelLut, so it runs, fuses and caches like any other point filter.
+
+final class AutoAdjustments {
+    // The share of pixels allowed to clip at each end, so a few stray specks don't stop the stretch.
+    static final double DEFAULT_CLIP = 0.005;
+
+    private AutoAdjustments() {
+    }
+
+    // Stretches each channel on its own to run from 0 to 255. Also takes out most color casts, since a tinted channel
+    // gets stretched more than the others.
+    static ChannelLut levels(ImageHistogram histogram, double clip) {
+        int[][] tables = new int[3][];
+        for (int channel = ImageHistogram.RED; channel <= ImageHistogram.BLUE; channel++) {
+            tables[channel] = stretch(histogram.percentile(channel, clip), histogram.percentile(channel, 1 - clip));
+        }
+        return new ChannelLut(tables[0], tables[1], tables[2]);
+    }
+
+    // Stretches all three channels by the same amount, from the darkest to the brightest of them, so contrast goes
+    // up without the colors shifting.
+    static ChannelLut contrast(ImageHistogram histogram, double clip) {
+        int low = 255;
+        int high = 0;
+        for (int channel = ImageHistogram.RED; channel <= ImageHistogram.BLUE; channel++) {
+            low = Math.min(low, histogram.percentile(channel, clip));
+            high = Math.max(high, histogram.percentile(channel, 1 - clip));
+        }
+        int[] table = stretch(low, high);
+        return new ChannelLut(table, table, table);
+    }
+
+    // Grey world: scales each channel so its average matches the average luminance, on the theory that a typical
+    // scene averages out to grey.
+    static ChannelLut whiteBalance(ImageHistogram histogram) {
+        double grey = histogram.mean(ImageHistogram.LUMINANCE);
+        int[][] tables = new int[3][256];
+        for (int channel = ImageHistogram.RED; channel <= ImageHistogram.BLUE; channel++) {
+            double mean = histogram.mean(channel);
+            double gain = mean < 1 ? 1 : grey / mean;
+            for (int v = 0; v < 256; v++) {
+                tables[channel][v] = (int) Math.min(255, Math.round(v * gain));
+            }
+        }
+        return new ChannelLut(tables[0], tables[1], tables[2]);
+    }
+
+    // low maps to 0, high to 255 and everything between in a straight line. Flat channels are left alone.
+    private static int[] stretch(int low, int high) {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = high <= low ? v : (int) Math.round(Math.min(Math.max((v - low) * 255.0 / (high - low), 0), 255));
+        }
+        return table;
+    }
+}
@@ -0,0 +1,344 @@
+// Headless batch mode: runs a filter chain over every image in a directory (or matching a glob) with no window.
+//
+//   java PhotoEditor --batch --input photos/ --output out/ --filters greyscale,pixelate:16,blur:4
+//
+// Decoding, filtering and encoding run on separate thread pools, so one image can be decoding while another is being
+// filtered and a third is being written. A semaphore caps how many images are in flight at once, which bounds memory.
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+final class BatchProcessor {
+    private static final String USAGE = String.join("\n",
+            "Usage: PhotoEditor --batch --input <directory or glob> --output <directory> --filters <chain> [options]",
+            "",
+            "  --filters     comma separated, applied in order:",
+            "                  greyscale",
+            "                  colorfilter:R:G:B[:step]   move channels towards R,G,B (step defaults to 20)",
+            "                  pixelate:size              block size 2-256",
+            "                  blur:sigma[:exact|box]     Gaussian blur",
+            "                  sharpen",
+            "                  lut:file.cube",
+            "  --format      output format (png, jpg, ...); defaults to png",
+            "  --decoders N  decoding threads (default 2)",
+            "  --encoders N  encoding threads (default 2)",
+            "  --filterers N images filtered at once (default 1; each filter already uses every core)",
+            "  --in-flight N most images held in memory at once (default decoders + filterers + encoders + 1)");
+
+    private final List<Path> inputs;
+    private final List<Path> outputs;
+    private final FilterPipeline pipeline;
+    private final String format;
+    private final int decoders;
+    private final int filterers;
+    private final int encoders;
+    private final int inFlight;
+
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder filterNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private BatchProcessor(List<Path> inputs, List<Path> outputs, FilterPipeline pipeline, String format,
+                           int decoders, int filterers, int encoders, int inFlight) {
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.pipeline = pipeline;
+        this.format = format;
+        this.decoders = decoders;
+        this.filterers = filterers;
+        this.encoders = encoders;
+        this.inFlight = inFlight;
+    }
+
+    // Returns the process exit code: 0 if every image was written, 1 if any failed, 2 for bad arguments.
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BatchProcessor processor;
+        try {
+            processor = parse(args);
+        } catch (IllegalArgumentException | IOException exception) {
+            System.err.println(exception.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        return processor.process();
+    }
+
+    private static BatchProcessor parse(String[] args) throws IOException {
+        String input = null;
+        String output = null;
+        String filters = null;
+        String format = "png";
+        int decoders = 2;
+        int filterers = 1;
+        int encoders = 2;
+        int inFlight = -1;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--input": input = value; i++; break;
+                case "--output": output = value; i++; break;
+                case "--filters": filters = value; i++; break;
+                case "--format": format = value; i++; break;
+                case "--decoders": decoders = positive(args[i], value); i++; break;
+                case "--filterers": filterers = positive(args[i], value); i++; break;
+                case "--encoders": encoders = positive(args[i], value); i++; break;
+                case "--in-flight": inFlight = positive(args[i], value); i++; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (input == null || output == null || filters == null) {
+            throw new IllegalArgumentException("--input, --output and --filters are all required");
+        }
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IllegalArgumentException("No image writer for format " + format);
+        }
+        if (inFlight < 0) {
+            inFlight = decoders + filterers + encoders + 1;
+        }
+        Path outputDirectory = Paths.get(output);
+        Files.createDirectories(outputDirectory);
+        List<Path> inputs = findInputs(input);
+        return new BatchProcessor(inputs, outputPaths(inputs, outputDirectory, format), parseFilters(filters), format,
+                decoders, filterers, encoders, inFlight);
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException(option + " needs a positive number");
+    }
+
+    // A directory means every readable image in it; anything else is treated as a glob like photos/*.jpg.
+    static List<Path> findInputs(String input) throws IOException {
+        Path path = Paths.get(input);
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        PathMatcher matcher;
+        Path directory;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            matcher = file -> suffixes.contains(extension(file.getFileName().toString()));
+        } else {
+            directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+            matcher = directory.getFileSystem().getPathMatcher("glob:" + path.getFileName());
+        }
+        List<Path> inputs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(Files::isRegularFile).filter(file -> matcher.matches(file.getFileName()) || matcher.matches(file))
+                    .sorted().forEach(inputs::add);
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No images found for " + input);
+        }
+        return inputs;
+    }
+
+    // Each input's output is its name with the new format's extension, in outputDirectory. Two inputs that would end up
+    // with the same output (a.jpg and a.png, or the same name in two directories), or an output that would overwrite
+    // an input, stop the batch before anything is written. Names are compared ignoring case, as Windows and macOS do.
+    static List<Path> outputPaths(List<Path> inputs, Path outputDirectory, String format) {
+        Map<String, Path> claimed = new HashMap<>();
+        for (Path input : inputs) {
+            claimed.put(key(input), input);
+        }
+        List<Path> outputs = new ArrayList<>();
+        Map<String, Path> written = new HashMap<>();
+        for (Path input : inputs) {
+            Path output = outputDirectory.resolve(baseName(input.getFileName().toString()) + "." + format);
+            String key = key(output);
+            Path other = written.putIfAbsent(key, input);
+            if (other != null) {
+                throw new IllegalArgumentException(other + " and " + input + " would both be written to " + output);
+            }
+            if (claimed.containsKey(key)) {
+                throw new IllegalArgumentException("Writing " + output + " would overwrite the input " + claimed.get(key));
+            }
+            outputs.add(output);
+        }
+        return outputs;
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString().toLowerCase(Locale.ROOT);
+    }
+
+    static FilterPipeline parseFilters(String chain) throws IOException {
+        FilterPipeline pipeline = new FilterPipeline();
+        for (String stage : chain.split(",")) {
+            String[] parts = stage.trim().split(":");
+            String name = parts[0].toLowerCase(Locale.ROOT);
+            try {
+                switch (name) {
+                    case "greyscale":
+                    case "grayscale":
+                        pipeline.add("Greyscale", new PointOperation(LutCompiler.compile(PointFilters.greyscale())));
+                        break;
+                    case "colorfilter":
+                        Color color = new Color(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+                        int step = parts.length > 4 ? Integer.parseInt(parts[4]) : PointFilters.DEFAULT_COLOR_FILTER_STEP;
+                        pipeline.add("ColorFilter", new PointOperation(LutCompiler.compile(PointFilters.colorFilter(color, step))));
+                        break;
+                    case "pixelate":
+                        pipeline.add("Pixelate", new PixelateOperation(Integer.parseInt(parts[1])));
+                        break;
+                    case "blur":
+                        GaussianBlurEngine.Mode mode = parts.length > 2
+                                ? GaussianBlurEngine.Mode.valueOf(parts[2].toUpperCase(Locale.ROOT)) : GaussianBlurEngine.Mode.AUTO;
+                        pipeline.add("Gaussian Blur", new BlurOperation(Double.parseDouble(parts[1]), mode));
+                        break;
+                    case "sharpen":
+                        pipeline.add("Sharpen", new ConvolveOperation(ConvolutionKernel.SHARPEN, BorderMode.CLAMP));
+                        break;
+                    case "lut":
+                        pipeline.add(parts[1], new PointOperation(LutCompiler.readCube(new File(stage.trim().substring(4)))));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter " + parts[0]);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException exception) {
+                throw new IllegalArgumentException("Bad parameters for filter " + stage.trim());
+            }
+        }
+        return pipeline;
+    }
+
+    private int process() {
+        ExecutorService decodePool = Executors.newFixedThreadPool(decoders);
+        ExecutorService filterPool = Executors.newFixedThreadPool(filterers);
+        ExecutorService encodePool = Executors.newFixedThreadPool(encoders);
+        Semaphore slots = new Semaphore(inFlight);
+        List<CompletableFuture<Void>> jobs = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                Path input = inputs.get(i);
+                Path output = outputs.get(i);
+                // Blocks here once inFlight images are between decode and the end of encode.
+                slots.acquireUninterruptibly();
+                CompletableFuture<Void> job = CompletableFuture
+                        .supplyAsync(() -> timed(decodeNanos, () -> decode(input)), decodePool)
+                        .thenApplyAsync(image -> timed(filterNanos, () -> pipeline.apply(image, JobProgress.NONE)), filterPool)
+                        .thenAcceptAsync(image -> timed(encodeNanos, () -> encode(image, output)), encodePool)
+                        .handle((ignored, error) -> {
+                            slots.release();
+                            if (error == null) {
+                                done.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                                Throwable cause = error;
+                                while (cause.getCause() != null) {
+                                    cause = cause.getCause();
+                                }
+                                System.err.println(input + ": " + cause);
+                            }
+                            return null;
+                        });
+                jobs.add(job);
+            }
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            decodePool.shutdown();
+            filterPool.shutdown();
+            encodePool.shutdown();
+        }
+        report(System.nanoTime() - start);
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    private static BufferedImage decode(Path input) {
+        try {
+            return MappedImage.read(input.toFile(), JobProgress.NONE);
+        } catch (IOException exception) {
+            throw new java.io.UncheckedIOException(exception);
+        }
+    }
+
+    private Void encode(BufferedImage image, Path output) {
+        try {
+            if (format.equalsIgnoreCase("png")) {
+                ImageSaver.savePng(image, output.toFile(), PngEncoder.DEFAULT_LEVEL, PngEncoder.DEFAULT_FILTER, JobProgress.NONE);
+            } else if (format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg")) {
+                ImageSaver.saveJpeg(image, output.toFile(), ImageSaver.DEFAULT_JPEG_QUALITY, JobProgress.NONE);
+            } else {
+                BufferedImage toWrite = image;
+                if (image.getColorModel().hasAlpha()) {
+                    // Most other formats can't store alpha either; drop it rather than fail.
+                    toWrite = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    Graphics2D graphics = toWrite.createGraphics();
+                    graphics.drawImage(image, 0, 0, null);
+                    graphics.dispose();
+                }
+                if (!ImageIO.write(toWrite, format, output.toFile())) {
+                    throw new IOException("No writer for " + format);
+                }
+            }
+            return null;
+        } catch (IOException exception) {
+            throw new java.io.UncheckedIOException(exception);
+        }
+    }
+
+    private interface Stage<T> {
+        T run();
+    }
+
+    private static <T> T timed(LongAdder total, Stage<T> stage) {
+        long start = System.nanoTime();
+        try {
+            return stage.run();
+        } finally {
+            total.add(System.nanoTime() - start);
+        }
+    }
+
+    private void report(long wallNanos) {
+        int images = done.get();
+        double seconds = wallNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%d images written, %d failed, in %.2f s (%.2f images/s)%n",
+                images, failed.get(), seconds, images / Math.max(seconds, 1e-9));
+        int attempted = Math.max(1, images + failed.get());
+        System.out.printf(Locale.ROOT, "  decode  %8.1f ms/image  (%d threads)%n", decodeNanos.sum() / 1e6 / attempted, decoders);
+        System.out.printf(Locale.ROOT, "  filter  %8.1f ms/image  (%d at once, %d threads each)%n",
+                filterNanos.sum() / 1e6 / attempted, filterers, TileExecutor.shared().getParallelism());
+        System.out.printf(Locale.ROOT, "  encode  %8.1f ms/image  (%d threads)%n", encodeNanos.sum() / 1e6 / attempted, encoders);
+        System.out.println("  filters: " + String.join(" -> ", pipeline.getNames()));
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+}
@@ -0,0 +1,38 @@
+// Gaussian blur as an ImageOperation; the work is done by GaussianBlurEngine.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+class BlurOperation implements ImageOperation {
+    private final double sigma;
+    private final GaussianBlurEngine.Mode mode;
+
+    BlurOperation(double sigma, GaussianBlurEngine.Mode mode) {
+        this.sigma = sigma;
+        this.mode = mode;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage source, JobProgress progress) {
+        return GaussianBlurEngine.blur(source, sigma, mode, progress);
+    }
+
+    @Override
+    public Rectangle sourceArea(Rectangle area, int width, int height) {
+        int reach = GaussianBlurEngine.reach(sigma, mode);
+        Rectangle grown = new Rectangle(area);
+        grown.grow(reach, reach);
+        return grown.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Object cacheKey() {
+        return List.of("blur", sigma, mode);
+    }
+
+    @Override
+    public String toString() {
+        return "sigma " + sigma + ", " + mode;
+    }
+}
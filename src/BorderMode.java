@@ -0,0 +1,33 @@
+// How a neighbourhood filter reads pixels that fall off the edge of the image.
+
+enum BorderMode {
+    // Repeat the edge pixel.
+    CLAMP {
+        @Override
+        int map(int index, int length) {
+            return Math.min(Math.max(index, 0), length - 1);
+        }
+    },
+    // Reflect about the edge pixel without repeating it: ... 2 1 | 0 1 2 ...
+    MIRROR {
+        @Override
+        int map(int index, int length) {
+            if (length == 1) {
+                return 0;
+            }
+            int period = 2 * (length - 1);
+            int folded = Math.floorMod(index, period);
+            return folded < length ? folded : period - folded;
+        }
+    },
+    // Continue from the opposite edge, as if the image were tiled.
+    WRAP {
+        @Override
+        int map(int index, int length) {
+            return Math.floorMod(index, length);
+        }
+    };
+
+    // Maps any index, inside or outside [0, length), to one inside it.
+    abstract int map(int index, int length);
+}
@@ -0,0 +1,363 @@
+// What the canvas shows: the image at some zoom, panned to some position, kept in a canvas-sized VolatileImage so the
+// screen can be repainted from video memory instead of rescaling the image every time.
+// Screen pixels are sampled from the ImagePyramid level closest to the zoom, so drawing costs about the same for a
+// 500 pixel image and a 100 megapixel one. Edits say which part of the image they changed and only that part of the
+// view is resampled; panning slides what is already there and fills in the newly exposed strips.
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
+
+final class CanvasView {
+    static final double MIN_ZOOM = 1.0 / 64;
+    static final double MAX_ZOOM = 32;
+    private static final Color BACKGROUND = Color.GRAY;
+    private static final int MAX_DIRTY_AREAS = 16;
+
+    private ImagePyramid pyramid;
+    // The one shown before it, kept so flipping between two images (before and after a filter) doesn't start over.
+    private ImagePyramid previous;
+    private int width = 1;
+    private int height = 1;
+    private double zoom = 1;
+    // Screen x = image x * zoom - originX, and likewise for y.
+    private double originX;
+    private double originY;
+    private boolean fitting = true;
+    private VolatileImage view;
+    // Parts of the view that are out of date, in screen coordinates.
+    private final List<Rectangle> dirty = new ArrayList<>();
+    // Set when the view has to be slid by this much before the dirty areas are redrawn.
+    private int scrollX;
+    private int scrollY;
+
+    // Shows this image. A different image from last time means the whole view is redrawn.
+    void setImage(BufferedImage image) {
+        if (pyramid == null || pyramid.getImage() != image) {
+            boolean sameSize = pyramid != null && pyramid.width(0) == image.getWidth() && pyramid.height(0) == image.getHeight();
+            ImagePyramid next = previous != null && previous.getImage() == image ? previous : new ImagePyramid(image);
+            previous = pyramid;
+            pyramid = next;
+            // Filter results are new images of the same size; keep looking at the same place.
+            if (fitting || !sameSize) {
+                fitToWindow();
+            }
+            invalidateAll();
+        }
+    }
+
+    // Shows image in place of from, which it is a same-size copy of apart from changedAreas (a filter's result, say).
+    // If from is what is showing, its pyramid carries over and only those areas are redrawn.
+    void replaceImage(BufferedImage from, BufferedImage image, List<Rectangle> changedAreas) {
+        if (pyramid == null || pyramid.getImage() != from || from.getWidth() != image.getWidth()
+                || from.getHeight() != image.getHeight()) {
+            setImage(image);
+            return;
+        }
+        previous = pyramid;
+        pyramid = new ImagePyramid(previous, image);
+        invalidate(changedAreas);
+    }
+
+    // The pyramid for image, reusing the one already built for showing it if there is one.
+    ImagePyramid pyramidFor(BufferedImage image) {
+        if (pyramid != null && pyramid.getImage() == image) {
+            return pyramid;
+        }
+        return previous != null && previous.getImage() == image ? previous : new ImagePyramid(image);
+    }
+
+    // The image was changed in place, all over.
+    void imageChanged() {
+        pyramid.invalidateAll();
+        invalidateAll();
+    }
+
+    // Marks an area of the image (in image coordinates) as changed.
+    void invalidate(Rectangle imageArea) {
+        pyramid.invalidate(imageArea);
+        Rectangle area = toScreen(imageArea);
+        if (!area.isEmpty()) {
+            dirty.add(area);
+        }
+    }
+
+    // Marks several areas as changed. Past a handful, they are redrawn as one rectangle round them all rather than one
+    // at a time.
+    void invalidate(List<Rectangle> imageAreas) {
+        if (imageAreas.size() <= MAX_DIRTY_AREAS) {
+            for (Rectangle area : imageAreas) {
+                invalidate(area);
+            }
+            return;
+        }
+        Rectangle bounds = null;
+        for (Rectangle area : imageAreas) {
+            pyramid.invalidate(area);
+            bounds = bounds == null ? new Rectangle(area) : bounds.union(area);
+        }
+        Rectangle area = toScreen(bounds);
+        if (!area.isEmpty()) {
+            dirty.add(area);
+        }
+    }
+
+    void invalidateAll() {
+        dirty.clear();
+        dirty.add(new Rectangle(0, 0, width, height));
+        scrollX = 0;
+        scrollY = 0;
+    }
+
+    void setSize(int width, int height) {
+        if (width != this.width || height != this.height) {
+            this.width = Math.max(1, width);
+            this.height = Math.max(1, height);
+            if (pyramid == null) {
+                return;
+            }
+            if (fitting) {
+                fitToWindow();
+            } else {
+                clampOrigin();
+            }
+            invalidateAll();
+        }
+    }
+
+    double getZoom() {
+        return zoom;
+    }
+
+    boolean isFitting() {
+        return fitting;
+    }
+
+    // Zooms so the whole image fits, and keeps it fitted as the canvas is resized.
+    void fitToWindow() {
+        fitting = true;
+        zoom = Math.min((double) width / pyramid.width(0), (double) height / pyramid.height(0));
+        clampOrigin();
+        invalidateAll();
+    }
+
+    // Zooms by factor, keeping the image point under screen position (x, y) where it is.
+    void zoomAt(double factor, double x, double y) {
+        double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        if (newZoom == zoom) {
+            return;
+        }
+        double imageX = toImageX(x);
+        double imageY = toImageY(y);
+        fitting = false;
+        zoom = newZoom;
+        originX = imageX * zoom - x;
+        originY = imageY * zoom - y;
+        clampOrigin();
+        invalidateAll();
+    }
+
+    // Zooms to zoom with image point (x, y) in the middle of the view.
+    void centreOn(double zoom, double x, double y) {
+        fitting = false;
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        originX = x * this.zoom - width / 2.0;
+        originY = y * this.zoom - height / 2.0;
+        clampOrigin();
+        invalidateAll();
+    }
+
+    void zoomAtCentre(double factor) {
+        zoomAt(factor, width / 2.0, height / 2.0);
+    }
+
+    // Moves the view by (dx, dy) screen pixels, as if the image were dragged the other way.
+    void panBy(int dx, int dy) {
+        double oldX = originX;
+        double oldY = originY;
+        originX += dx;
+        originY += dy;
+        clampOrigin();
+        // Only whole-pixel moves can reuse what is on screen.
+        int shiftX = (int) Math.round(originX - oldX);
+        int shiftY = (int) Math.round(originY - oldY);
+        originX = oldX + shiftX;
+        originY = oldY + shiftY;
+        if (shiftX == 0 && shiftY == 0) {
+            return;
+        }
+        fitting = false;
+        scrollX += shiftX;
+        scrollY += shiftY;
+        if (Math.abs(scrollX) >= width || Math.abs(scrollY) >= height) {
+            invalidateAll();
+            return;
+        }
+        List<Rectangle> moved = new ArrayList<>();
+        Rectangle screen = new Rectangle(0, 0, width, height);
+        for (Rectangle area : dirty) {
+            Rectangle shifted = new Rectangle(area.x - shiftX, area.y - shiftY, area.width, area.height).intersection(screen);
+            if (!shifted.isEmpty()) {
+                moved.add(shifted);
+            }
+        }
+        dirty.clear();
+        dirty.addAll(moved);
+        // The strips that slid into view.
+        if (shiftX > 0) {
+            dirty.add(new Rectangle(width - shiftX, 0, shiftX, height));
+        } else if (shiftX < 0) {
+            dirty.add(new Rectangle(0, 0, -shiftX, height));
+        }
+        if (shiftY > 0) {
+            dirty.add(new Rectangle(0, height - shiftY, width, shiftY));
+        } else if (shiftY < 0) {
+            dirty.add(new Rectangle(0, 0, width, -shiftY));
+        }
+    }
+
+    double toImageX(double screenX) {
+        return (screenX + originX) / zoom;
+    }
+
+    double toImageY(double screenY) {
+        return (screenY + originY) / zoom;
+    }
+
+    // For drawing things given in image coordinates (like the selection outline) over the view.
+    AffineTransform imageToScreen() {
+        AffineTransform transform = AffineTransform.getTranslateInstance(-originX, -originY);
+        transform.scale(zoom, zoom);
+        return transform;
+    }
+
+    // The screen pixels whose sample points fall inside imageArea, plus one pixel all round for rounding.
+    Rectangle toScreen(Rectangle imageArea) {
+        int x0 = (int) Math.floor(imageArea.x * zoom - originX) - 1;
+        int y0 = (int) Math.floor(imageArea.y * zoom - originY) - 1;
+        int x1 = (int) Math.ceil((imageArea.x + imageArea.width) * zoom - originX) + 1;
+        int y1 = (int) Math.ceil((imageArea.y + imageArea.height) * zoom - originY) + 1;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(0, 0, width, height));
+    }
+
+    // An image smaller than the canvas is centred; a bigger one can't be dragged off the edge.
+    private void clampOrigin() {
+        double shownWidth = pyramid.width(0) * zoom;
+        double shownHeight = pyramid.height(0) * zoom;
+        originX = shownWidth <= width ? -(width - shownWidth) / 2 : Math.max(0, Math.min(shownWidth - width, originX));
+        originY = shownHeight <= height ? -(height - shownHeight) / 2 : Math.max(0, Math.min(shownHeight - height, originY));
+    }
+
+    // Brings the cached view up to date and returns the part of it that changed (in screen coordinates), or null if
+    // nothing did. Video memory can be lost at any time (another full-screen app, a display change); then the whole
+    // view is redrawn and returned.
+    Rectangle validate(GraphicsConfiguration configuration) {
+        if (view == null || view.getWidth() != width || view.getHeight() != height
+                || view.validate(configuration) == VolatileImage.IMAGE_INCOMPATIBLE) {
+            if (view != null) {
+                view.flush();
+            }
+            view = configuration.createCompatibleVolatileImage(width, height);
+            invalidateAll();
+        } else if (view.contentsLost()) {
+            invalidateAll();
+        }
+        Graphics2D pen = view.createGraphics();
+        Rectangle changed = update(pen);
+        pen.dispose();
+        return changed;
+    }
+
+    // Applies any pending scroll, then redraws the dirty areas.
+    Rectangle update(Graphics2D pen) {
+        Rectangle changed = null;
+        if (scrollX != 0 || scrollY != 0) {
+            pen.copyArea(0, 0, width, height, -scrollX, -scrollY);
+            changed = new Rectangle(0, 0, width, height);
+            scrollX = 0;
+            scrollY = 0;
+        }
+        for (Rectangle area : dirty) {
+            render(pen, area);
+            changed = changed == null ? area : changed.union(area);
+        }
+        dirty.clear();
+        return changed;
+    }
+
+    // True if the view was lost after validate(), so whatever was just painted from it may be garbage.
+    boolean contentsLost() {
+        return view == null || view.contentsLost();
+    }
+
+    // Copies the given part of the cached view (everything, if area is null) to the pen at the same place.
+    void paint(Graphics2D pen, Rectangle area) {
+        if (area == null) {
+            pen.drawImage(view, 0, 0, null);
+        } else {
+            pen.drawImage(view, area.x, area.y, area.x + area.width, area.y + area.height,
+                    area.x, area.y, area.x + area.width, area.y + area.height, null);
+        }
+    }
+
+    // Samples the pyramid under area (the nearest level pixel to each screen pixel's centre) into a small patch and
+    // copies that in. Whole and partial redraws pick exactly the same pixels, so a patched-up view is identical to a
+    // fresh one.
+    private void render(Graphics2D pen, Rectangle area) {
+        pen.setColor(BACKGROUND);
+        pen.fillRect(area.x, area.y, area.width, area.height);
+        int level = pyramid.levelFor(zoom);
+        int levelWidth = pyramid.width(level);
+        int levelHeight = pyramid.height(level);
+        double step = 1.0 / (zoom * (1 << level));
+        // Only the columns and rows whose sample points land inside the image get a patch.
+        int left = area.x;
+        while (left < area.x + area.width && sample(left, originX, step) < 0) {
+            left++;
+        }
+        int right = area.x + area.width;
+        while (right > left && sample(right - 1, originX, step) >= levelWidth) {
+            right--;
+        }
+        int top = area.y;
+        while (top < area.y + area.height && sample(top, originY, step) < 0) {
+            top++;
+        }
+        int bottom = area.y + area.height;
+        while (bottom > top && sample(bottom - 1, originY, step) >= levelHeight) {
+            bottom--;
+        }
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int[] columns = new int[right - left];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = sample(left + i, originX, step);
+        }
+        int first = columns[0];
+        int[] row = new int[columns[columns.length - 1] - first + 1];
+        boolean alpha = pyramid.getImage().getColorModel().hasAlpha();
+        BufferedImage patch = new BufferedImage(right - left, bottom - top,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] out = IntImages.pixels(patch);
+        for (int y = top, o = 0; y < bottom; y++) {
+            pyramid.readRow(level, first, sample(y, originY, step), row.length, row);
+            for (int i = 0; i < columns.length; i++, o++) {
+                out[o] = row[columns[i] - first];
+            }
+        }
+        if (alpha) {
+            pen.setColor(Color.WHITE);
+            pen.fillRect(left, top, right - left, bottom - top);
+        }
+        pen.drawImage(patch, left, top, null);
+    }
+
+    // The level pixel under the centre of a screen pixel, along one axis.
+    private static int sample(int screen, double origin, double step) {
+        return (int) Math.floor((screen + 0.5 + origin) * step);
+    }
+}
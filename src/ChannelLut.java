@@ -0,0 +1,74 @@
+// A point filter where each output channel depends only on the same input channel, stored as three 256-entry tables.
+// Applying it is three array lookups per pixel, whatever the original function was.
+
+import java.util.Arrays;
+
+final class ChannelLut implements PackedColorTransformer {
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    // Each table maps 0-255 to 0-255.
+    ChannelLut(int[] red, int[] green, int[] blue) {
+        this.red = shifted(red, 16);
+        this.green = shifted(green, 8);
+        this.blue = shifted(blue, 0);
+    }
+
+    // Samples a transformer on the grey ramp. Only valid if the transformer really treats channels independently,
+    // which LutCompiler checks before using this.
+    static ChannelLut sample(PackedColorTransformer transformer) {
+        int[] red = new int[256];
+        int[] green = new int[256];
+        int[] blue = new int[256];
+        for (int v = 0; v < 256; v++) {
+            int out = transformer.transformPixel(0xFF000000 | v << 16 | v << 8 | v);
+            red[v] = (out >> 16) & 0xFF;
+            green[v] = (out >> 8) & 0xFF;
+            blue[v] = out & 0xFF;
+        }
+        return new ChannelLut(red, green, blue);
+    }
+
+    // Tables are stored already shifted into place so a pixel is just three lookups ORed together.
+    private static int[] shifted(int[] table, int shift) {
+        if (table.length != 256) {
+            throw new IllegalArgumentException("Channel tables need 256 entries");
+        }
+        int[] result = new int[256];
+        for (int i = 0; i < 256; i++) {
+            result[i] = Math.min(Math.max(table[i], 0), 255) << shift;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChannelLut)) {
+            return false;
+        }
+        ChannelLut lut = (ChannelLut) other;
+        return Arrays.equals(red, lut.red) && Arrays.equals(green, lut.green) && Arrays.equals(blue, lut.blue);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(red) + Arrays.hashCode(green)) + Arrays.hashCode(blue);
+    }
+
+    @Override
+    public int transformPixel(int argb) {
+        return (argb & 0xFF000000) | red[(argb >> 16) & 0xFF] | green[(argb >> 8) & 0xFF] | blue[argb & 0xFF];
+    }
+
+    @Override
+    public void transformRow(int[] in, int[] out, int from, int to) {
+        int[] red = this.red;
+        int[] green = this.green;
+        int[] blue = this.blue;
+        for (int i = from; i < to; i++) {
+            int argb = in[i];
+            out[i] = (argb & 0xFF000000) | red[(argb >> 16) & 0xFF] | green[(argb >> 8) & 0xFF] | blue[argb & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Convolves a PlanarImage with any ConvolutionKernel, reading from the input and writing to a new output.
+//
+// Each output row is built by adding whole shifted source rows into an accumulator row, one kernel weight at a time.
+// In the middle of the row that inner loop is a plain a[x] += w * b[x + dx] over float arrays, which the JIT
+// auto-vectorizes. Only the few pixels at each end, where the kernel hangs off the image, go through the BorderMode.
+
+final class ConvolutionEngine {
+    private ConvolutionEngine() {
+    }
+
+    static PlanarImage convolve(PlanarImage in, ConvolutionKernel kernel, BorderMode border, JobProgress progress) {
+        int width = in.width;
+        int height = in.height;
+        PlanarImage out = new PlanarImage(width, height);
+        System.arraycopy(in.alpha, 0, out.alpha, 0, in.alpha.length);
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            int[] rowOffsets = new int[kernel.height];
+            for (int y = y0; y < y1; y++) {
+                for (int ky = 0; ky < kernel.height; ky++) {
+                    rowOffsets[ky] = border.map(y + ky - kernel.originY, height) * width;
+                }
+                for (int channel = 0; channel < 3; channel++) {
+                    convolveRow(in.channel(channel), rowOffsets, out.channel(channel), y * width, width, kernel, border);
+                }
+            }
+        });
+        return out;
+    }
+
+    // Writes one output row into target[outRow, outRow + width). rowOffsets[ky] is where the source row under kernel
+    // row ky starts in source, so callers can feed rows from the whole image or from a small band buffer.
+    static void convolveRow(float[] source, int[] rowOffsets, float[] target, int outRow, int width,
+                            ConvolutionKernel kernel, BorderMode border) {
+        for (int x = 0; x < width; x++) {
+            target[outRow + x] = kernel.bias;
+        }
+        for (int ky = 0; ky < kernel.height; ky++) {
+            int inRow = rowOffsets[ky];
+            for (int kx = 0; kx < kernel.width; kx++) {
+                float weight = kernel.weights[ky * kernel.width + kx];
+                if (weight == 0) {
+                    continue;
+                }
+                int dx = kx - kernel.originX;
+                // Output columns whose source column x + dx is inside the row.
+                int start = Math.max(0, -dx);
+                int end = Math.min(width, width - dx);
+                for (int x = 0; x < Math.min(start, width); x++) {
+                    target[outRow + x] += weight * source[inRow + border.map(x + dx, width)];
+                }
+                int offset = inRow + dx;
+                for (int x = start; x < end; x++) {
+                    target[outRow + x] += weight * source[offset + x];
+                }
+                for (int x = Math.max(end, start); x < width; x++) {
+                    target[outRow + x] += weight * source[inRow + border.map(x + dx, width)];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+// An N x M convolution kernel: weights in row-major order, the pixel the kernel is centred on, and a bias added to
+// every result (emboss uses 128 so flat areas come out mid-grey).
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class ConvolutionKernel {
+    static final ConvolutionKernel SHARPEN = new ConvolutionKernel("Sharpen", 3, 3, new float[]{
+            0, -1, 0,
+            -1, 5, -1,
+            0, -1, 0}, 0);
+    static final ConvolutionKernel EDGE_DETECT = new ConvolutionKernel("Edge Detect", 3, 3, new float[]{
+            -1, -1, -1,
+            -1, 8, -1,
+            -1, -1, -1}, 0);
+    static final ConvolutionKernel EMBOSS = new ConvolutionKernel("Emboss", 3, 3, new float[]{
+            -2, -1, 0,
+            -1, 1, 1,
+            0, 1, 2}, 128);
+    static final ConvolutionKernel UNSHARP_MASK = unsharpMask(1.0, 1.0);
+
+    final String name;
+    final int width;
+    final int height;
+    final float[] weights;
+    final int originX;
+    final int originY;
+    final float bias;
+
+    ConvolutionKernel(String name, int width, int height, float[] weights, float bias) {
+        if (width < 1 || height < 1 || weights.length != width * height) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " kernel needs " + width * height + " weights");
+        }
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+        this.originX = width / 2;
+        this.originY = height / 2;
+        this.bias = bias;
+    }
+
+    static ConvolutionKernel[] presets() {
+        return new ConvolutionKernel[]{SHARPEN, UNSHARP_MASK, EDGE_DETECT, EMBOSS};
+    }
+
+    // The image plus amount times its difference from a Gaussian blur of it, folded into one kernel.
+    static ConvolutionKernel unsharpMask(double sigma, double amount) {
+        float[] gaussian = GaussianBlurEngine.kernel(sigma);
+        int size = gaussian.length;
+        float[] weights = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                weights[y * size + x] = (float) (-amount * gaussian[x] * gaussian[y]);
+            }
+        }
+        weights[(size / 2) * size + size / 2] += (float) (1 + amount);
+        return new ConvolutionKernel("Unsharp Mask", size, size, weights, 0);
+    }
+
+    // Reads a kernel typed by the user: one row per line (or separated by ';'), numbers separated by spaces or commas.
+    // Every row must be the same length.
+    static ConvolutionKernel parse(String text, boolean normalize) {
+        List<float[]> rows = new ArrayList<>();
+        for (String line : text.split("[;\\n]")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("[,\\s]+");
+            float[] row = new float[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                row[i] = Float.parseFloat(parts[i]);
+            }
+            if (!rows.isEmpty() && row.length != rows.get(0).length) {
+                throw new IllegalArgumentException("Every kernel row needs " + rows.get(0).length + " numbers");
+            }
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("The kernel is empty");
+        }
+        int width = rows.get(0).length;
+        float[] weights = new float[width * rows.size()];
+        float sum = 0;
+        for (int y = 0; y < rows.size(); y++) {
+            System.arraycopy(rows.get(y), 0, weights, y * width, width);
+        }
+        for (float weight : weights) {
+            sum += weight;
+        }
+        if (normalize && sum != 0) {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] /= sum;
+            }
+        }
+        return new ConvolutionKernel("Custom", width, rows.size(), weights, 0);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
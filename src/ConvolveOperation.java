@@ -0,0 +1,63 @@
+// Any ConvolutionKernel as an ImageOperation; Sharpen is ConvolutionKernel.SHARPEN with clamped borders.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+class ConvolveOperation implements ImageOperation {
+    private final ConvolutionKernel kernel;
+    private final BorderMode border;
+
+    ConvolveOperation(ConvolutionKernel kernel, BorderMode border) {
+        this.kernel = kernel;
+        this.border = border;
+    }
+
+    ConvolutionKernel getKernel() {
+        return kernel;
+    }
+
+    BorderMode getBorder() {
+        return border;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage source, JobProgress progress) {
+        // Planes of a mapped image wouldn't fit on the heap; the banded pass streams it instead.
+        if (MappedImage.isMapped(source)) {
+            return new FilterPipeline.FusedConvolution(null, this, null).apply(source, progress);
+        }
+        progress.expectPasses(3);
+        PlanarImage planes = PlanarImage.from(source, progress);
+        return ConvolutionEngine.convolve(planes, kernel, border, progress).toImage(source, progress);
+    }
+
+    @Override
+    public Rectangle sourceArea(Rectangle area, int width, int height) {
+        int x0 = area.x - kernel.originX;
+        int y0 = area.y - kernel.originY;
+        int x1 = area.x + area.width + kernel.width - 1 - kernel.originX;
+        int y1 = area.y + area.height + kernel.height - 1 - kernel.originY;
+        // Wrapping past an edge reads from the far side, so that takes the whole width (or height).
+        if (border == BorderMode.WRAP && (x0 < 0 || x1 > width)) {
+            x0 = 0;
+            x1 = width;
+        }
+        if (border == BorderMode.WRAP && (y0 < 0 || y1 > height)) {
+            y0 = 0;
+            y1 = height;
+        }
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Object cacheKey() {
+        return List.of("convolve", kernel.width, kernel.height, Arrays.toString(kernel.weights), kernel.bias, border);
+    }
+
+    @Override
+    public String toString() {
+        return kernel.name + " " + kernel.width + "x" + kernel.height + ", " + border;
+    }
+}
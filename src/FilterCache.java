@@ -0,0 +1,172 @@
+// Recently computed filter results, so trying a setting again (after an undo, say) is a lookup instead of a rerun.
+//
+// Results are keyed by the operation's cacheKey plus a fingerprint of the source image: a 64-bit hash of every
+// 256x256 tile, worked out in parallel. Hashing is a single read of the pixels, far cheaper than any neighbourhood
+// filter. The cache keeps copies (the image it hands out becomes currentImage, which scribbles and undo write into)
+// and drops the least recently used results once it is over its budget (-Dphotoeditor.filterCacheMB, default 256).
+// Results bigger than a quarter of the budget are only held through SoftReferences, so the GC can take the big ones
+// back if the heap gets tight.
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+final class FilterCache {
+    static final int TILE_SIZE = 256;
+    private static final long DEFAULT_BUDGET = Long.getLong("photoeditor.filterCacheMB", 256) << 20;
+    private static final int SOFT_SHARE = 4;
+
+    private final long budget;
+    // Access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    FilterCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    FilterCache(long budget) {
+        this.budget = budget;
+    }
+
+    // What a result of operation on source is filed under, or null if the operation's results can't be reused.
+    static Key key(BufferedImage source, ImageOperation operation) {
+        Object operationKey = operation.cacheKey();
+        // Mapped images are too big to keep copies of anyway.
+        if (operationKey == null || MappedImage.isMapped(source)) {
+            return null;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        long[] tiles = new long[columns * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+        TileExecutor.shared().forEachTile(width, height, TILE_SIZE, TILE_SIZE, (x0, y0, x1, y1) -> {
+            tiles[(y0 / TILE_SIZE) * columns + x0 / TILE_SIZE] =
+                    hash(IntImages.readRect(source, x0, y0, x1 - x0, y1 - y0, null), (x1 - x0) * (y1 - y0));
+        });
+        return new Key(width, height, source.getColorModel().hasAlpha(), tiles, operationKey);
+    }
+
+    // FNV-1a style, over four interleaved lanes so the multiplies don't all wait on each other. Project files use it
+    // too, to tell which tiles changed since the last save.
+    static long hash(int[] pixels, int count) {
+        long a = 0xCBF29CE484222325L;
+        long b = a + 1;
+        long c = a + 2;
+        long d = a + 3;
+        int i = 0;
+        for (; i + 3 < count; i += 4) {
+            a = (a ^ pixels[i]) * 0x100000001B3L;
+            b = (b ^ pixels[i + 1]) * 0x100000001B3L;
+            c = (c ^ pixels[i + 2]) * 0x100000001B3L;
+            d = (d ^ pixels[i + 3]) * 0x100000001B3L;
+        }
+        for (; i < count; i++) {
+            a = (a ^ pixels[i]) * 0x100000001B3L;
+        }
+        return ((a * 31 + b) * 31 + c) * 31 + d;
+    }
+
+    // A copy of the result filed under key, or null if there isn't one (any more).
+    BufferedImage get(Key key) {
+        BufferedImage cached;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            cached = entry.image();
+            if (cached == null) {
+                entries.remove(key);
+                bytes -= entry.bytes;
+                return null;
+            }
+        }
+        return copy(cached);
+    }
+
+    // Files a copy of result under key. Memory-mapped results, and ones bigger than the whole budget, aren't kept.
+    void put(Key key, BufferedImage result) {
+        long size = 4L * result.getWidth() * result.getHeight();
+        if (key == null || size > budget || !IntImages.isPackedInt(result)) {
+            return;
+        }
+        Entry entry = new Entry(copy(result), size, size > budget / SOFT_SHARE);
+        synchronized (this) {
+            Entry replaced = entries.put(key, entry);
+            if (replaced != null) {
+                bytes -= replaced.bytes;
+            }
+            bytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = IntImages.createCompatible(image);
+        int[] pixels = IntImages.pixels(image);
+        System.arraycopy(pixels, 0, IntImages.pixels(copy), 0, pixels.length);
+        return copy;
+    }
+
+    static final class Key {
+        private final int width;
+        private final int height;
+        private final boolean alpha;
+        private final long[] tiles;
+        private final Object operation;
+        private final int hash;
+
+        Key(int width, int height, boolean alpha, long[] tiles, Object operation) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            this.tiles = tiles;
+            this.operation = operation;
+            this.hash = Objects.hash(width, height, alpha, Arrays.hashCode(tiles), operation);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && width == key.width && height == key.height && alpha == key.alpha
+                    && Arrays.equals(tiles, key.tiles) && operation.equals(key.operation);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final BufferedImage image;
+        private final SoftReference<BufferedImage> softImage;
+        final long bytes;
+
+        Entry(BufferedImage image, long bytes, boolean soft) {
+            this.image = soft ? null : image;
+            this.softImage = soft ? new SoftReference<>(image) : null;
+            this.bytes = bytes;
+        }
+
+        BufferedImage image() {
+            return softImage == null ? image : softImage.get();
+        }
+    }
+}
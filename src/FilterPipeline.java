@@ -0,0 +1,246 @@
+// A list of filters that is run in as few passes over memory as possible.
+//
+// Neighbouring point filters are composed and compiled into one lookup table. A run of point filters, then one
+// convolution, then more point filters becomes a single banded pass: each band of source rows (plus the kernel's halo)
+// goes through the first lookup table into a small planar buffer, is convolved, goes through the second table and is
+// written out, all while the band is still in cache. Anything else (blur, pixelate, ...) is run on its own.
+// So Greyscale, ColorFilter and Sharpen cost one pass instead of three.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+final class FilterPipeline implements ImageOperation {
+    // Aim for band buffers of about this size (three float channels) so they stay in L2 cache.
+    private static final int BAND_BYTES = 1 << 20;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<ImageOperation> stages = new ArrayList<>();
+
+    void add(String name, ImageOperation stage) {
+        names.add(name);
+        stages.add(stage);
+    }
+
+    boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    int size() {
+        return stages.size();
+    }
+
+    List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" + ", names);
+    }
+
+    void clear() {
+        names.clear();
+        stages.clear();
+    }
+
+    FilterPipeline copy() {
+        FilterPipeline copy = new FilterPipeline();
+        copy.names.addAll(names);
+        copy.stages.addAll(stages);
+        return copy;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage source, JobProgress progress) {
+        BufferedImage image = source;
+        for (ImageOperation pass : plan()) {
+            progress.checkCancelled();
+            image = pass.apply(image, progress);
+        }
+        return image;
+    }
+
+    // Each stage needs its source area of the next stage's, working back from the end.
+    @Override
+    public Rectangle sourceArea(Rectangle area, int width, int height) {
+        Rectangle needed = area;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            needed = stages.get(i).sourceArea(needed, width, height);
+        }
+        return needed;
+    }
+
+    @Override
+    public Rectangle changedArea(int width, int height) {
+        Rectangle changed = new Rectangle();
+        for (ImageOperation stage : stages) {
+            Rectangle area = stage.changedArea(width, height);
+            changed = changed.isEmpty() ? area : changed.union(area);
+        }
+        return changed;
+    }
+
+    @Override
+    public Object cacheKey() {
+        List<Object> keys = new ArrayList<>();
+        for (ImageOperation stage : stages) {
+            Object key = stage.cacheKey();
+            if (key == null) {
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // The passes that will actually run, after fusing.
+    List<ImageOperation> plan() {
+        List<ImageOperation> passes = new ArrayList<>();
+        PackedColorTransformer before = null;
+        ConvolveOperation convolution = null;
+        PackedColorTransformer after = null;
+        for (ImageOperation stage : stages) {
+            if (stage instanceof PointOperation) {
+                PackedColorTransformer transformer = ((PointOperation) stage).getTransformer();
+                if (convolution == null) {
+                    before = then(before, transformer);
+                } else {
+                    after = then(after, transformer);
+                }
+            } else if (stage instanceof ConvolveOperation) {
+                if (convolution != null) {
+                    addPass(passes, before, convolution, after);
+                    before = null;
+                    after = null;
+                }
+                convolution = (ConvolveOperation) stage;
+            } else {
+                addPass(passes, before, convolution, after);
+                before = null;
+                convolution = null;
+                after = null;
+                passes.add(stage);
+            }
+        }
+        addPass(passes, before, convolution, after);
+        return passes;
+    }
+
+    private static void addPass(List<ImageOperation> passes, PackedColorTransformer before, ConvolveOperation convolution,
+                                PackedColorTransformer after) {
+        if (convolution == null) {
+            if (before != null) {
+                passes.add(new PointOperation(LutCompiler.compile(before)));
+            }
+        } else {
+            passes.add(new FusedConvolution(before == null ? null : LutCompiler.compile(before), convolution,
+                    after == null ? null : LutCompiler.compile(after)));
+        }
+    }
+
+    private static PackedColorTransformer then(PackedColorTransformer first, PackedColorTransformer second) {
+        if (first == null) {
+            return second;
+        }
+        return argb -> second.transformPixel(first.transformPixel(argb));
+    }
+
+    // Point filter(s), convolution, point filter(s), done band by band in one pass. Either point filter may be null.
+    static class FusedConvolution implements ImageOperation {
+        private final PackedColorTransformer before;
+        private final ConvolutionKernel kernel;
+        private final BorderMode border;
+        private final PackedColorTransformer after;
+
+        FusedConvolution(PackedColorTransformer before, ConvolveOperation convolution, PackedColorTransformer after) {
+            this.before = before;
+            this.kernel = convolution.getKernel();
+            this.border = convolution.getBorder();
+            this.after = after;
+        }
+
+        // Rows go in and out through readRect and writeRect, so a memory-mapped image is streamed through a band at a
+        // time like any other and never copied onto the heap whole. Within a band, the last kernel.height source rows
+        // sit in a rolling window after the first filter, so each row is read and filtered once; only the halo rows
+        // at band edges are done twice, which the band height keeps to a quarter at most.
+        @Override
+        public BufferedImage apply(BufferedImage image, JobProgress progress) {
+            BufferedImage source = MappedImage.isMapped(image) ? image : IntImages.toIntRGB(image);
+            BufferedImage result = MappedImage.createCompatible(source);
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int window = kernel.height;
+            int halo = window - 1;
+            int bands = TileExecutor.shared().getParallelism() * 4;
+            int bandRows = Math.max(4 * halo, Math.min((height + bands - 1) / bands, Math.max(1, BAND_BYTES / (width * 16))));
+            // Each worker thread keeps its window between bands.
+            ThreadLocal<Window> windows = ThreadLocal.withInitial(() -> new Window(window, width));
+            progress.expectPasses(1);
+            TileExecutor.shared().forEachTile(width, height, width, bandRows, progress, (x0, y0, x1, y1) -> {
+                // Band row j is image row y0 - originY + j (mapped through the border mode), kept in slot j % window.
+                Window rows = windows.get();
+                for (int j = 0; j < halo; j++) {
+                    rows.load(source, border.map(y0 - kernel.originY + j, height), j % window);
+                }
+                int[] rowOffsets = new int[window];
+                for (int y = y0; y < y1; y++) {
+                    int newest = y - y0 + halo;
+                    rows.load(source, border.map(y0 - kernel.originY + newest, height), newest % window);
+                    for (int ky = 0; ky < window; ky++) {
+                        rowOffsets[ky] = ((y - y0 + ky) % window) * width;
+                    }
+                    for (int channel = 0; channel < 3; channel++) {
+                        ConvolutionEngine.convolveRow(rows.planes[channel], rowOffsets, rows.convolved[channel], 0, width, kernel, border);
+                    }
+                    // Band row y - y0 + originY is image row y itself, whose alpha passes through.
+                    int row = ((y - y0 + kernel.originY) % window) * width;
+                    for (int x = 0; x < width; x++) {
+                        int pixel = (rows.original[row + x] & 0xFF000000) | toByte(rows.convolved[0][x]) << 16
+                                | toByte(rows.convolved[1][x]) << 8 | toByte(rows.convolved[2][x]);
+                        rows.out[x] = after == null ? pixel : after.transformPixel(pixel);
+                    }
+                    IntImages.writeRect(result, 0, y, width, 1, rows.out);
+                }
+            });
+            return result;
+        }
+
+        // One worker's rolling window of source rows, as they were and after the first filter, plus its row buffers.
+        private final class Window {
+            final int width;
+            final int[] original;
+            final float[][] planes;
+            final float[][] convolved;
+            final int[] line;
+            final int[] out;
+
+            Window(int rows, int width) {
+                this.width = width;
+                original = new int[rows * width];
+                planes = new float[3][rows * width];
+                convolved = new float[3][width];
+                line = new int[width];
+                out = new int[width];
+            }
+
+            void load(BufferedImage source, int y, int slot) {
+                IntImages.readRect(source, 0, y, width, 1, line);
+                int start = slot * width;
+                System.arraycopy(line, 0, original, start, width);
+                for (int x = 0; x < width; x++) {
+                    int pixel = before == null ? line[x] : before.transformPixel(line[x]);
+                    planes[0][start + x] = (pixel >> 16) & 0xFF;
+                    planes[1][start + x] = (pixel >> 8) & 0xFF;
+                    planes[2][start + x] = pixel & 0xFF;
+                }
+            }
+        }
+
+        private static int toByte(float value) {
+            return Math.min(Math.max((int) (value + 0.5f), 0), 255);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+// A filter's settings dialog with a live preview: the controls, and under them the image with the filter applied at
+// the current settings, redrawn as they change.
+//
+// The preview runs on a proxy, a level of the image's pyramid no bigger than the preview area needs, with the
+// settings scaled to match (a blur's sigma and a pixelate's block size are in pixels, so on a quarter size proxy they
+// are a quarter as big). Each change cancels the preview still running and starts the newest. While the settings are
+// changing, previews that go over the frame budget (-Dphotoeditor.previewBudgetMs, default 33) move to a proxy half
+// the size; once they stop, the biggest proxy catches up. So tuning costs about the same on any size of image. The
+// real image isn't touched until OK, when the filter runs on it at full resolution like any other.
+//
+// The proxies are copied out of a snapshot of the canvas's pyramid in the background, since levels the canvas hasn't
+// drawn yet mean averaging down the whole image. The dialog opens straight away and previews start once they're ready.
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleFunction;
+
+final class FilterPreview {
+    private static final long BUDGET_NANOS = Long.getLong("photoeditor.previewBudgetMs", 33) * 1_000_000;
+    // Proxies at half, a quarter... the size of the first one, for previews that don't fit the budget.
+    private static final int SMALLER_PROXIES = 3;
+    private static final ExecutorService PREVIEWER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PhotoEditor filter preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JComponent controls;
+    // The filter at the current settings, for an image scale times the size of the real one.
+    private final DoubleFunction<ImageOperation> filter;
+    // Filled in by the preview thread before the first preview runs on it.
+    private final BufferedImage[] proxies;
+    private final double[] scales;
+    private final Selection[] selections;
+    private final PreviewPanel panel = new PreviewPanel();
+    private final JLabel status = new JLabel(" ");
+    private final ImagePyramid snapshot;
+    private final int firstLevel;
+    // Only touched on the EDT.
+    private int liveProxy;
+    private JobProgress running;
+    private boolean ready;
+    private boolean closed;
+
+    // Shows pyramid's image fitted into about width x height. selection limits the filter, as it will on OK.
+    FilterPreview(JComponent controls, ImagePyramid pyramid, Selection selection, int width, int height,
+                  DoubleFunction<ImageOperation> filter) {
+        this.controls = controls;
+        this.filter = filter;
+        double fit = Math.min(1, Math.min((double) width / pyramid.width(0), (double) height / pyramid.height(0)));
+        firstLevel = pyramid.levelFor(fit);
+        int count = Math.min(SMALLER_PROXIES + 1, pyramid.levels() - firstLevel);
+        snapshot = pyramid.snapshot();
+        proxies = new BufferedImage[count];
+        scales = new double[count];
+        selections = new Selection[count];
+        for (int i = 0; i < count; i++) {
+            int level = firstLevel + i;
+            scales[i] = 1.0 / (1 << level);
+            if (selection != null) {
+                selections[i] = Selection.of(AffineTransform.getScaleInstance(scales[i], scales[i])
+                        .createTransformedShape(selection.getShape()), pyramid.width(level), pyramid.height(level));
+            }
+        }
+        panel.setPreferredSize(new Dimension((int) Math.ceil(pyramid.width(0) * fit), (int) Math.ceil(pyramid.height(0) * fit)));
+    }
+
+    // Shows the dialog and waits for it. True if the user pressed OK.
+    boolean show(Component parent, String title) {
+        JPanel content = new JPanel(new BorderLayout(0, 5));
+        content.add(controls, BorderLayout.NORTH);
+        content.add(panel, BorderLayout.CENTER);
+        content.add(status, BorderLayout.SOUTH);
+        prepare();
+        try {
+            return JOptionPane.showConfirmDialog(parent, content, title, JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION;
+        } finally {
+            closed = true;
+            if (running != null) {
+                running.cancel();
+            }
+        }
+    }
+
+    // Builds the proxies on the preview thread, so any preview asked for later queues up behind them.
+    private void prepare() {
+        status.setText("Preparing preview...");
+        JobProgress progress = new JobProgress();
+        running = progress;
+        PREVIEWER.execute(() -> {
+            // The smallest first: it needs every tile of the bigger ones, which are then ready for them.
+            for (int i = proxies.length - 1; i >= 0; i--) {
+                if (progress.isCancelled()) {
+                    return;
+                }
+                proxies[i] = snapshot.levelImage(firstLevel + i);
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (!closed) {
+                    ready = true;
+                    preview(liveProxy);
+                }
+            });
+        });
+    }
+
+    // For the controls' listeners to call whenever a setting moves.
+    void settingsChanged() {
+        if (ready) {
+            preview(liveProxy);
+        }
+    }
+
+    private void preview(int proxy) {
+        if (running != null) {
+            running.cancel();
+        }
+        JobProgress progress = new JobProgress();
+        running = progress;
+        ImageOperation operation = filter.apply(scales[proxy]);
+        if (selections[proxy] != null) {
+            operation = new SelectionOperation(operation, selections[proxy]);
+        }
+        ImageOperation previewed = operation;
+        PREVIEWER.execute(() -> {
+            if (progress.isCancelled()) {
+                return;
+            }
+            long start = System.nanoTime();
+            BufferedImage result;
+            try {
+                result = previewed.apply(proxies[proxy], progress);
+                progress.checkCancelled();
+            } catch (CancellationException cancelled) {
+                return;
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            SwingUtilities.invokeLater(() -> shown(proxy, progress, result, elapsed));
+        });
+    }
+
+    private void shown(int proxy, JobProgress progress, BufferedImage result, long elapsed) {
+        if (closed) {
+            return;
+        }
+        panel.setImage(result);
+        long shrink = Math.round(1 / scales[proxy]);
+        status.setText((shrink == 1 ? "Preview at full size, " : "Preview at 1/" + shrink + " size, ") + elapsed / 1_000_000 + " ms");
+        if (elapsed > BUDGET_NANOS && proxy == liveProxy && proxy + 1 < proxies.length) {
+            liveProxy = proxy + 1;
+        } else if (elapsed <= BUDGET_NANOS && proxy < liveProxy) {
+            liveProxy = proxy;
+        }
+        // The settings have stopped moving (nothing newer was asked for), so catch up on the full size proxy.
+        if (progress == running && proxy > 0) {
+            preview(0);
+        }
+    }
+
+    // The preview scaled to fit, drawn in the middle.
+    private static final class PreviewPanel extends JComponent {
+        private BufferedImage image;
+
+        void setImage(BufferedImage image) {
+            this.image = image;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            if (image == null) {
+                return;
+            }
+            double scale = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+            int w = (int) Math.round(image.getWidth() * scale);
+            int h = (int) Math.round(image.getHeight() * scale);
+            Graphics2D pen = (Graphics2D) g;
+            pen.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            pen.drawImage(image, (getWidth() - w) / 2, (getHeight() - h) / 2, w, h, null);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+// Gaussian blur on packed int pixels. Always reads from one buffer and writes to another, so no pass ever sees its own output.
+//
+// EXACT convolves with the real kernel (radius 3 * sigma), which costs O(sigma) per pixel per pass.
+// BOX approximates the Gaussian with three box blurs in a row (central limit theorem). Each box blur is a
+// sliding window sum, so it costs the same per pixel whatever sigma is. AUTO uses EXACT for small sigma and BOX above it.
+// Edges are clamped (the border pixel repeats) in both modes, so their results can be compared directly.
+//
+// Memory-mapped images are blurred a band of rows at a time, each band read with reach() extra rows above and below.
+// Rows inside a band only ever read rows within reach of themselves, so the clamping at a band's cut edges never gets
+// into the rows kept, and the result is the same as blurring the whole image at once.
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+final class GaussianBlurEngine {
+    enum Mode { AUTO, EXACT, BOX }
+
+    // Up to here the exact kernel is at most 19 taps wide, which is about what three box passes cost anyway.
+    static final double EXACT_SIGMA_LIMIT = 3;
+
+    private static final int BOX_PASSES = 3;
+    // Rows per band for mapped images aim for about this many pixels, not counting the extra rows.
+    private static final int BAND_PIXELS = 1 << 22;
+
+    private GaussianBlurEngine() {
+    }
+
+    static BufferedImage blur(BufferedImage image, double sigma, Mode mode) {
+        return blur(image, sigma, mode, JobProgress.NONE);
+    }
+
+    static BufferedImage blur(BufferedImage image, double sigma, Mode mode, JobProgress progress) {
+        if (MappedImage.isMapped(image)) {
+            return blurInBands(image, sigma, mode, progress);
+        }
+        BufferedImage source = IntImages.toIntRGB(image);
+        BufferedImage result = IntImages.createCompatible(source);
+        blur(IntImages.pixels(source), IntImages.pixels(result), source.getWidth(), source.getHeight(), sigma, mode, progress);
+        return result;
+    }
+
+    private static BufferedImage blurInBands(BufferedImage source, double sigma, Mode mode, JobProgress progress) {
+        BufferedImage result = MappedImage.createCompatible(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int reach = reach(sigma, mode);
+        int bandRows = Math.max(1, BAND_PIXELS / width);
+        progress.beginPass((height + bandRows - 1) / bandRows);
+        for (int y0 = 0; y0 < height; y0 += bandRows) {
+            progress.checkCancelled();
+            int y1 = Math.min(y0 + bandRows, height);
+            int top = Math.max(0, y0 - reach);
+            int rows = Math.min(height, y1 + reach) - top;
+            int[] band = IntImages.readRect(source, 0, top, width, rows, null);
+            int[] blurred = new int[band.length];
+            blur(band, blurred, width, rows, sigma, mode, JobProgress.NONE);
+            IntImages.writeRect(result, 0, y0, width, y1 - y0, Arrays.copyOfRange(blurred, (y0 - top) * width, (y1 - top) * width));
+            progress.worked(1);
+        }
+        return result;
+    }
+
+    // src and dst must be different arrays. Alpha is copied from src unchanged.
+    static void blur(int[] src, int[] dst, int width, int height, double sigma, Mode mode, JobProgress progress) {
+        if (sigma <= 0) {
+            System.arraycopy(src, 0, dst, 0, width * height);
+            return;
+        }
+        if (isExact(sigma, mode)) {
+            progress.expectPasses(2);
+            blurExact(src, dst, width, height, sigma, progress);
+        } else {
+            progress.expectPasses(2 * BOX_PASSES + 1);
+            blurBoxes(src, dst, width, height, sigma, progress);
+        }
+    }
+
+    // How far from a pixel the blur reads, in pixels: the kernel radius, or all the box passes' radii together.
+    static int reach(double sigma, Mode mode) {
+        if (sigma <= 0) {
+            return 0;
+        }
+        if (isExact(sigma, mode)) {
+            return kernel(sigma).length / 2;
+        }
+        int reach = 0;
+        for (int radius : boxRadii(sigma, BOX_PASSES)) {
+            reach += radius;
+        }
+        return reach;
+    }
+
+    private static boolean isExact(double sigma, Mode mode) {
+        return mode == Mode.EXACT || (mode == Mode.AUTO && sigma <= EXACT_SIGMA_LIMIT);
+    }
+
+    static float[] kernel(double sigma) {
+        int radius = (int) Math.ceil(3 * sigma);
+        float[] kernel = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / (2 * sigma * sigma));
+            kernel[i + radius] = (float) value;
+            sum += value;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    private static void blurExact(int[] src, int[] dst, int width, int height, double sigma, JobProgress progress) {
+        float[] kernel = kernel(sigma);
+        int radius = kernel.length / 2;
+        int[] horizontal = new int[width * height];
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    float red = 0;
+                    float green = 0;
+                    float blue = 0;
+                    for (int k = -radius; k <= radius; k++) {
+                        int pixel = src[row + Math.min(Math.max(x + k, 0), width - 1)];
+                        float weight = kernel[k + radius];
+                        red += ((pixel >> 16) & 0xFF) * weight;
+                        green += ((pixel >> 8) & 0xFF) * weight;
+                        blue += (pixel & 0xFF) * weight;
+                    }
+                    horizontal[row + x] = pack(src[row + x], red, green, blue);
+                }
+            }
+        });
+        // Vertical pass goes row by row, adding whole source rows into accumulators, so memory is read in order.
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            float[] red = new float[width];
+            float[] green = new float[width];
+            float[] blue = new float[width];
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(red, 0);
+                Arrays.fill(green, 0);
+                Arrays.fill(blue, 0);
+                for (int k = -radius; k <= radius; k++) {
+                    int row = Math.min(Math.max(y + k, 0), height - 1) * width;
+                    float weight = kernel[k + radius];
+                    for (int x = 0; x < width; x++) {
+                        int pixel = horizontal[row + x];
+                        red[x] += ((pixel >> 16) & 0xFF) * weight;
+                        green[x] += ((pixel >> 8) & 0xFF) * weight;
+                        blue[x] += (pixel & 0xFF) * weight;
+                    }
+                }
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    dst[row + x] = pack(src[row + x], red[x], green[x], blue[x]);
+                }
+            }
+        });
+    }
+
+    private static void blurBoxes(int[] src, int[] dst, int width, int height, double sigma, JobProgress progress) {
+        int[] radii = boxRadii(sigma, BOX_PASSES);
+        int[] first = new int[width * height];
+        int[] second = new int[width * height];
+        // Box blurs commute, so all the horizontal passes go first and then all the vertical ones.
+        int[] in = src;
+        int[] out = first;
+        for (int radius : radii) {
+            boxHorizontal(in, out, width, height, radius, progress);
+            in = out;
+            out = out == first ? second : first;
+        }
+        for (int i = 0; i < radii.length; i++) {
+            if (i == radii.length - 1) {
+                out = dst;
+            }
+            boxVertical(in, out, width, height, radii[i], progress);
+            in = out;
+            out = out == first ? second : first;
+        }
+        // The box passes round the alpha along with the colors; put back the original.
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                dst[i] = (src[i] & 0xFF000000) | (dst[i] & 0x00FFFFFF);
+            }
+        });
+    }
+
+    // Radii for n box blurs whose combined variance matches sigma^2 (the widths differ by at most 2).
+    static int[] boxRadii(double sigma, int n) {
+        double idealWidth = Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) Math.floor(idealWidth);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        double idealLowerCount = (12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n) / (-4.0 * lower - 4);
+        int lowerCount = (int) Math.round(idealLowerCount);
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            radii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    private static void boxHorizontal(int[] in, int[] out, int width, int height, int radius, JobProgress progress) {
+        int size = 2 * radius + 1;
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                int last = width - 1;
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    int pixel = in[row + Math.min(Math.max(k, 0), last)];
+                    red += (pixel >> 16) & 0xFF;
+                    green += (pixel >> 8) & 0xFF;
+                    blue += pixel & 0xFF;
+                }
+                for (int x = 0; x < width; x++) {
+                    out[row + x] = packAverage(red, green, blue, size);
+                    int leaving = in[row + Math.max(x - radius, 0)];
+                    int entering = in[row + Math.min(x + radius + 1, last)];
+                    red += ((entering >> 16) & 0xFF) - ((leaving >> 16) & 0xFF);
+                    green += ((entering >> 8) & 0xFF) - ((leaving >> 8) & 0xFF);
+                    blue += (entering & 0xFF) - (leaving & 0xFF);
+                }
+            }
+        });
+    }
+
+    // Keeps one running sum per column and slides it down the image a row at a time, so every read is sequential.
+    private static void boxVertical(int[] in, int[] out, int width, int height, int radius, JobProgress progress) {
+        int size = 2 * radius + 1;
+        TileExecutor.shared().forEachColumnBand(width, height, 16, progress, (x0, y0, x1, y1) -> {
+            int columns = x1 - x0;
+            int[] red = new int[columns];
+            int[] green = new int[columns];
+            int[] blue = new int[columns];
+            int last = height - 1;
+            for (int k = -radius; k <= radius; k++) {
+                int row = Math.min(Math.max(k, 0), last) * width;
+                for (int x = x0; x < x1; x++) {
+                    int pixel = in[row + x];
+                    red[x - x0] += (pixel >> 16) & 0xFF;
+                    green[x - x0] += (pixel >> 8) & 0xFF;
+                    blue[x - x0] += pixel & 0xFF;
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                int leavingRow = Math.max(y - radius, 0) * width;
+                int enteringRow = Math.min(y + radius + 1, last) * width;
+                for (int x = x0; x < x1; x++) {
+                    int i = x - x0;
+                    out[row + x] = packAverage(red[i], green[i], blue[i], size);
+                    int leaving = in[leavingRow + x];
+                    int entering = in[enteringRow + x];
+                    red[i] += ((entering >> 16) & 0xFF) - ((leaving >> 16) & 0xFF);
+                    green[i] += ((entering >> 8) & 0xFF) - ((leaving >> 8) & 0xFF);
+                    blue[i] += (entering & 0xFF) - (leaving & 0xFF);
+                }
+            }
+        });
+    }
+
+    private static int packAverage(int red, int green, int blue, int size) {
+        int half = size / 2;
+        return 0xFF000000 | ((red + half) / size) << 16 | ((green + half) / size) << 8 | ((blue + half) / size);
+    }
+
+    private static int pack(int original, float red, float green, float blue) {
+        return (original & 0xFF000000) | clamp(red) << 16 | clamp(green) << 8 | clamp(blue);
+    }
+
+    private static int clamp(float value) {
+        return Math.min(Math.max((int) (value + 0.5f), 0), 255);
+    }
+}
@@ -0,0 +1,60 @@
+// Shows an ImageHistogram: luminance as a grey area with the red, green and blue counts drawn over it as lines.
+
+import javax.swing.*;
+import java.awt.*;
+
+class HistogramPanel extends JPanel {
+    private static final Color[] CHANNEL_COLORS = {
+            new Color(255, 70, 70), new Color(70, 220, 70), new Color(90, 140, 255)};
+
+    private ImageHistogram histogram;
+
+    HistogramPanel() {
+        setPreferredSize(new Dimension(276, 160));
+        setBackground(Color.DARK_GRAY);
+    }
+
+    void setHistogram(ImageHistogram histogram) {
+        this.histogram = histogram;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (histogram == null) {
+            return;
+        }
+        Graphics2D pen = (Graphics2D) g;
+        long[][] counts = new long[4][];
+        // Pure black and white are often a huge spike (a border, blown highlights) that would flatten everything
+        // else, so the scale ignores them and they just run off the top.
+        long peak = 1;
+        for (int channel = 0; channel < 4; channel++) {
+            counts[channel] = histogram.channel(channel);
+            for (int value = 1; value < 255; value++) {
+                peak = Math.max(peak, counts[channel][value]);
+            }
+        }
+        int left = 10;
+        int bottom = getHeight() - 10;
+        int plotHeight = bottom - 10;
+        float columnWidth = (getWidth() - 20) / 256f;
+        pen.setColor(Color.GRAY);
+        for (int value = 0; value < 256; value++) {
+            int bar = (int) Math.min(plotHeight, counts[ImageHistogram.LUMINANCE][value] * plotHeight / peak);
+            pen.fillRect(left + (int) (value * columnWidth), bottom - bar, Math.max(1, (int) Math.ceil(columnWidth)), bar);
+        }
+        pen.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int channel = ImageHistogram.RED; channel <= ImageHistogram.BLUE; channel++) {
+            pen.setColor(CHANNEL_COLORS[channel]);
+            int[] xs = new int[256];
+            int[] ys = new int[256];
+            for (int value = 0; value < 256; value++) {
+                xs[value] = left + (int) ((value + 0.5f) * columnWidth);
+                ys[value] = bottom - (int) Math.min(plotHeight, counts[channel][value] * plotHeight / peak);
+            }
+            pen.drawPolyline(xs, ys, 256);
+        }
+    }
+}
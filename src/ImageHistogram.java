@@ -0,0 +1,158 @@
+// Red, green, blue and luminance histograms of an image, kept per tile so an edit only costs the tiles it changed.
+//
+// Tiles are the undo history's (UndoHistory.TILE_SIZE square), since filter edits, scribble strokes and undo steps all
+// already know which of those they touched. Each tile keeps its own counts and the totals are the sum of the tiles,
+// so re-measuring a tile is: subtract its old counts, count it again, add the new ones. Tiles are counted in parallel.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.List;
+
+final class ImageHistogram {
+    static final int RED = 0;
+    static final int GREEN = 1;
+    static final int BLUE = 2;
+    static final int LUMINANCE = 3;
+    private static final int TILE_SIZE = UndoHistory.TILE_SIZE;
+    private static final int BINS = 4 * 256;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    // tileCounts[tile][channel * 256 + value]
+    private final int[][] tileCounts;
+    private final long[] totals = new long[BINS];
+
+    private ImageHistogram(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tileCounts = new int[columns * ((height + TILE_SIZE - 1) / TILE_SIZE)][];
+    }
+
+    static ImageHistogram of(BufferedImage image) {
+        ImageHistogram histogram = new ImageHistogram(image.getWidth(), image.getHeight());
+        BitSet all = new BitSet();
+        all.set(0, histogram.tileCounts.length);
+        histogram.apply(histogram.measure(image, all));
+        return histogram;
+    }
+
+    // Counts the tiles under areas of image again, without changing anything yet; apply() puts the counts in. The
+    // split lets a job count on its worker thread and the EDT swap the counts in along with the image.
+    Update measure(BufferedImage image, List<Rectangle> areas) {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            return new Update(of(image), null, null);
+        }
+        BitSet tiles = new BitSet();
+        for (Rectangle area : areas) {
+            Rectangle bounds = area.intersection(new Rectangle(0, 0, width, height));
+            if (bounds.isEmpty()) {
+                continue;
+            }
+            for (int ty = bounds.y / TILE_SIZE; ty <= (bounds.y + bounds.height - 1) / TILE_SIZE; ty++) {
+                tiles.set(ty * columns + bounds.x / TILE_SIZE, ty * columns + (bounds.x + bounds.width - 1) / TILE_SIZE + 1);
+            }
+        }
+        return measure(image, tiles);
+    }
+
+    private Update measure(BufferedImage image, BitSet tiles) {
+        int[] indexes = tiles.stream().toArray();
+        int[][] counts = new int[indexes.length][];
+        // One "tile" per histogram tile, so the executor spreads them over the threads.
+        TileExecutor.shared().forEachTile(indexes.length, 1, 1, 1, (x0, y0, x1, y1) -> {
+            int tile = indexes[x0];
+            int left = (tile % columns) * TILE_SIZE;
+            int top = (tile / columns) * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - left);
+            int h = Math.min(TILE_SIZE, height - top);
+            counts[x0] = count(IntImages.readRect(image, left, top, w, h, null), w * h);
+        });
+        return new Update(null, indexes, counts);
+    }
+
+    private static int[] count(int[] pixels, int length) {
+        int[] counts = new int[BINS];
+        for (int i = 0; i < length; i++) {
+            int pixel = pixels[i];
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            counts[r]++;
+            counts[256 + g]++;
+            counts[512 + b]++;
+            // The same weights as Greyscale.
+            counts[768 + (30 * r + 59 * g + 11 * b) / 100]++;
+        }
+        return counts;
+    }
+
+    // Returns the histogram to use from now on: this one with the new counts in, or a new one if the image changed size.
+    synchronized ImageHistogram apply(Update update) {
+        if (update.replacement != null) {
+            return update.replacement;
+        }
+        for (int i = 0; i < update.tiles.length; i++) {
+            int[] old = tileCounts[update.tiles[i]];
+            int[] counts = update.counts[i];
+            for (int bin = 0; bin < BINS; bin++) {
+                totals[bin] += counts[bin] - (old == null ? 0 : old[bin]);
+            }
+            tileCounts[update.tiles[i]] = counts;
+        }
+        return this;
+    }
+
+    // Measures and applies in one go, for small areas on the EDT (a scribble segment, say).
+    ImageHistogram update(BufferedImage image, List<Rectangle> areas) {
+        return apply(measure(image, areas));
+    }
+
+    // The 256 counts for one channel.
+    synchronized long[] channel(int channel) {
+        long[] counts = new long[256];
+        System.arraycopy(totals, channel * 256, counts, 0, 256);
+        return counts;
+    }
+
+    long pixels() {
+        return (long) width * height;
+    }
+
+    // The lowest value with at least fraction of the pixels at or below it.
+    int percentile(int channel, double fraction) {
+        long[] counts = channel(channel);
+        long target = (long) Math.ceil(fraction * pixels());
+        long seen = 0;
+        for (int value = 0; value < 256; value++) {
+            seen += counts[value];
+            if (seen >= Math.max(1, target)) {
+                return value;
+            }
+        }
+        return 255;
+    }
+
+    double mean(int channel) {
+        long[] counts = channel(channel);
+        double sum = 0;
+        for (int value = 0; value < 256; value++) {
+            sum += (double) value * counts[value];
+        }
+        return sum / Math.max(1, pixels());
+    }
+
+    static final class Update {
+        private final ImageHistogram replacement;
+        private final int[] tiles;
+        private final int[][] counts;
+
+        private Update(ImageHistogram replacement, int[] tiles, int[][] counts) {
+            this.replacement = replacement;
+            this.tiles = tiles;
+            this.counts = counts;
+        }
+    }
+}
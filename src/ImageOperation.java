@@ -0,0 +1,27 @@
+// A filter that builds a new image from a source image. The source is never written to, so a cancelled or failed
+// operation leaves the image it started from exactly as it was.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+interface ImageOperation {
+    BufferedImage apply(BufferedImage source, JobProgress progress);
+
+    // The part of a width x height source the operation reads to work out the given area of its result. Run on just
+    // that part (cut out), it gives the same pixels inside area as it would on the whole image. Point filters only
+    // need the area itself; neighbourhood filters override this to add their reach.
+    default Rectangle sourceArea(Rectangle area, int width, int height) {
+        return area.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    // The part of a width x height source the result can differ from it in.
+    default Rectangle changedArea(int width, int height) {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    // Equal for operations that make the same result from the same source, so results can be reused (FilterCache);
+    // null if there's no telling.
+    default Object cacheKey() {
+        return null;
+    }
+}
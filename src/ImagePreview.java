@@ -0,0 +1,156 @@
+// A quick, low resolution look at an image file, for something to show while the full image is still decoding.
+// Uses the thumbnail embedded in the file when there is one (JFIF, or the EXIF thumbnail most cameras write) and it is at
+// least half the size asked for, otherwise decodes with source subsampling so the codec only produces about as many
+// pixels as fit on screen.
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+final class ImagePreview {
+    // Below this much shrinking the full decode is quick enough that a preview isn't worth it.
+    private static final int MIN_SUBSAMPLING = 2;
+
+    private ImagePreview() {
+    }
+
+    // A preview at least as big as width x height where the image allows (an embedded thumbnail can be as small as
+    // half that each way), or null if the image is small enough to just open. Failures give null too; the full decode will report them properly.
+    static BufferedImage read(File file, int width, int height) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                int imageWidth = reader.getWidth(0);
+                int imageHeight = reader.getHeight(0);
+                int subsampling = Math.min(imageWidth / Math.max(1, width), imageHeight / Math.max(1, height));
+                if (subsampling < MIN_SUBSAMPLING) {
+                    return null;
+                }
+                BufferedImage thumbnail = thumbnail(reader, file);
+                // Embedded thumbnails are often only 160 x 120; upscaling one that small would be a smear.
+                if (thumbnail != null && sameShape(thumbnail, imageWidth, imageHeight)
+                        && thumbnail.getWidth() >= width / 2 && thumbnail.getHeight() >= height / 2) {
+                    return IntImages.toIntRGB(thumbnail);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return IntImages.toIntRGB(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException exception) {
+            return null;
+        }
+    }
+
+    private static BufferedImage thumbnail(ImageReader reader, File file) throws IOException {
+        try {
+            if (reader.readerSupportsThumbnails() && reader.getNumThumbnails(0) > 0) {
+                return reader.readThumbnail(0, 0);
+            }
+        } catch (IOException metadataTrouble) {
+            // Camera JPEGs often break JFIF rules the reader's metadata parser insists on; the pixels still decode.
+        }
+        if (reader.getFormatName().equalsIgnoreCase("jpeg")) {
+            return exifThumbnail(file);
+        }
+        return null;
+    }
+
+    // Thumbnails are sometimes letterboxed or for a different crop; those would look wrong stretched to the image.
+    private static boolean sameShape(BufferedImage thumbnail, int width, int height) {
+        double aspect = (double) width / height;
+        double thumbnailAspect = (double) thumbnail.getWidth() / thumbnail.getHeight();
+        return Math.abs(aspect / thumbnailAspect - 1) < 0.02;
+    }
+
+    // The JPEG thumbnail in an EXIF (APP1) segment: IFD1's JPEGInterchangeFormat and JPEGInterchangeFormatLength tags
+    // give its offset and length inside the TIFF structure. Returns null if there isn't one.
+    private static BufferedImage exifThumbnail(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                // Image data starts at SOS; no EXIF segment came before it.
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    return null;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (marker != 0xFFE1) {
+                    skipFully(in, length);
+                    continue;
+                }
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (length > 6 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                        && segment[4] == 0 && segment[5] == 0) {
+                    return exifThumbnail(segment, 6);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage exifThumbnail(byte[] segment, int tiff) throws IOException {
+        boolean littleEndian = segment[tiff] == 'I';
+        int ifd0 = readInt(segment, tiff + 4, littleEndian);
+        int entries = readShort(segment, tiff + ifd0, littleEndian);
+        int ifd1 = readInt(segment, tiff + ifd0 + 2 + 12 * entries, littleEndian);
+        if (ifd1 == 0) {
+            return null;
+        }
+        int offset = -1;
+        int length = -1;
+        int count = readShort(segment, tiff + ifd1, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = tiff + ifd1 + 2 + 12 * i;
+            int tag = readShort(segment, entry, littleEndian);
+            if (tag == 0x0201) {
+                offset = readInt(segment, entry + 8, littleEndian);
+            } else if (tag == 0x0202) {
+                length = readInt(segment, entry + 8, littleEndian);
+            }
+        }
+        if (offset <= 0 || length <= 0 || tiff + offset + length > segment.length) {
+            return null;
+        }
+        return ImageIO.read(new ByteArrayInputStream(segment, tiff + offset, length));
+    }
+
+    private static int readShort(byte[] bytes, int at, boolean littleEndian) {
+        int a = bytes[at] & 0xFF;
+        int b = bytes[at + 1] & 0xFF;
+        return littleEndian ? b << 8 | a : a << 8 | b;
+    }
+
+    private static int readInt(byte[] bytes, int at, boolean littleEndian) {
+        int high = readShort(bytes, littleEndian ? at + 2 : at, littleEndian);
+        int low = readShort(bytes, littleEndian ? at : at + 2, littleEndian);
+        return high << 16 | low;
+    }
+
+    private static void skipFully(InputStream in, int count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Truncated JPEG");
+            }
+            count -= skipped;
+        }
+    }
+}
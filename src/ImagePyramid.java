@@ -0,0 +1,241 @@
+// Half, quarter, eighth... size copies of an image, for drawing it zoomed out without touching every full-size pixel.
+// Level 0 is the image itself; level k is 2^k times smaller, each pixel the average of the 2x2 pixels under it.
+// Levels are built tile by tile, only when the canvas asks for them, each tile from the four tiles under it one level
+// down. Edits throw away just the tiles they cover, and the least recently drawn tiles are dropped once the pyramid
+// is over its memory budget (-Dphotoeditor.pyramidMB, default 64), so memory stays bounded however big the image is.
+// A pyramid can be seeded with a stored copy of one level (a project file's overview); tiles of that level then come
+// from the copy, so it and everything above it are built without reading the image, until an edit covers them.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+final class ImagePyramid {
+    static final int TILE_SIZE = 256;
+    private static final long DEFAULT_BUDGET = Long.getLong("photoeditor.pyramidMB", 64) << 20;
+
+    private final BufferedImage image;
+    private final int[] widths;
+    private final int[] heights;
+    private final long budget;
+    // Keyed by level, tile row and tile column; access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<Long, int[]> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private BufferedImage seed;
+    private int seedLevel;
+    // Seed tiles the image has changed under since, by tile row and column.
+    private boolean[] seedStale;
+
+    ImagePyramid(BufferedImage image) {
+        this(image, DEFAULT_BUDGET);
+    }
+
+    ImagePyramid(BufferedImage image, long budget) {
+        this.image = image;
+        this.budget = budget;
+        int count = 1;
+        for (int w = image.getWidth(), h = image.getHeight(); Math.max(w, h) > TILE_SIZE; w = (w + 1) / 2, h = (h + 1) / 2) {
+            count++;
+        }
+        widths = new int[count];
+        heights = new int[count];
+        widths[0] = image.getWidth();
+        heights[0] = image.getHeight();
+        for (int level = 1; level < count; level++) {
+            widths[level] = (widths[level - 1] + 1) / 2;
+            heights[level] = (heights[level - 1] + 1) / 2;
+        }
+    }
+
+    // A pyramid for image, a same-size image that starts out like from's: from's tiles carry over, and whatever is
+    // different has to be invalidate()d. Built tiles are never written to, so the two can share them.
+    ImagePyramid(ImagePyramid from, BufferedImage image) {
+        this(image, from.budget);
+        tiles.putAll(from.tiles);
+        bytes = from.bytes;
+        seed = from.seed;
+        seedLevel = from.seedLevel;
+        seedStale = from.seedStale == null ? null : from.seedStale.clone();
+    }
+
+    // Uses levelImage for whichever level it is the size of. Ignored if it matches none (or only the image itself).
+    void seed(BufferedImage levelImage) {
+        for (int level = 1; level < levels(); level++) {
+            if (widths[level] == levelImage.getWidth() && heights[level] == levelImage.getHeight()) {
+                seed = levelImage;
+                seedLevel = level;
+                seedStale = new boolean[columns(level) * ((heights[level] + TILE_SIZE - 1) / TILE_SIZE)];
+                return;
+            }
+        }
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    // The number of levels, counting the image itself. The smallest fits in one tile.
+    int levels() {
+        return widths.length;
+    }
+
+    int width(int level) {
+        return widths[level];
+    }
+
+    int height(int level) {
+        return heights[level];
+    }
+
+    // The most detailed level that is no bigger than needed at this zoom (so it is shrunk by at most 2x when drawn).
+    int levelFor(double zoom) {
+        int level = 0;
+        while (level + 1 < levels() && zoom * (1 << (level + 1)) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    // The image changed under area (in image coordinates): drop every tile built from it.
+    void invalidate(Rectangle area) {
+        Rectangle bounds = area.intersection(new Rectangle(0, 0, widths[0], heights[0]));
+        if (bounds.isEmpty()) {
+            return;
+        }
+        for (int level = 1; level < levels(); level++) {
+            int x0 = (bounds.x >> level) / TILE_SIZE;
+            int y0 = (bounds.y >> level) / TILE_SIZE;
+            int x1 = ((bounds.x + bounds.width - 1) >> level) / TILE_SIZE;
+            int y1 = ((bounds.y + bounds.height - 1) >> level) / TILE_SIZE;
+            for (int ty = y0; ty <= y1; ty++) {
+                for (int tx = x0; tx <= x1; tx++) {
+                    int[] tile = tiles.remove(key(level, tx, ty));
+                    if (tile != null) {
+                        bytes -= 4L * tile.length;
+                    }
+                    if (seed != null && level == seedLevel) {
+                        seedStale[ty * columns(level) + tx] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    void invalidateAll() {
+        tiles.clear();
+        bytes = 0;
+        seed = null;
+        seedStale = null;
+    }
+
+    // A pyramid of the same image starting with this one's tiles, for reading levels on another thread: a pyramid is
+    // only safe on the thread that owns it, but the tiles themselves are never written to.
+    ImagePyramid snapshot() {
+        return new ImagePyramid(this, image);
+    }
+
+    // A whole level as an image of its own, for a small copy of the image to work on (a filter preview, say).
+    BufferedImage levelImage(int level) {
+        BufferedImage copy = new BufferedImage(widths[level], heights[level],
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = IntImages.pixels(copy);
+        int[] row = null;
+        for (int y = 0; y < heights[level]; y++) {
+            row = readRow(level, 0, y, widths[level], row);
+            System.arraycopy(row, 0, pixels, y * widths[level], widths[level]);
+        }
+        return copy;
+    }
+
+    // Copies w pixels of one row of a level, starting at (x, y), into destination.
+    int[] readRow(int level, int x, int y, int w, int[] destination) {
+        if (destination == null || destination.length < w) {
+            destination = new int[w];
+        }
+        if (level == 0) {
+            return IntImages.readRect(image, x, y, w, 1, destination);
+        }
+        int ty = y / TILE_SIZE;
+        int rowInTile = y - ty * TILE_SIZE;
+        for (int done = 0; done < w; ) {
+            int tx = (x + done) / TILE_SIZE;
+            int tileX = tx * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, widths[level] - tileX);
+            int from = x + done - tileX;
+            int count = Math.min(w - done, tileWidth - from);
+            System.arraycopy(tile(level, tx, ty), rowInTile * tileWidth + from, destination, done, count);
+            done += count;
+        }
+        return destination;
+    }
+
+    private int[] tile(int level, int tx, int ty) {
+        long key = key(level, tx, ty);
+        int[] tile = tiles.get(key);
+        if (tile == null) {
+            tile = build(level, tx, ty);
+            tiles.put(key, tile);
+            bytes += 4L * tile.length;
+            trim();
+        }
+        return tile;
+    }
+
+    // Averages 2x2 blocks of the level below. An odd last row or column is paired with itself.
+    private int[] build(int level, int tx, int ty) {
+        int x0 = tx * TILE_SIZE;
+        int y0 = ty * TILE_SIZE;
+        int tileWidth = Math.min(TILE_SIZE, widths[level] - x0);
+        int tileHeight = Math.min(TILE_SIZE, heights[level] - y0);
+        if (seed != null && level == seedLevel && !seedStale[ty * columns(level) + tx]) {
+            return IntImages.readRect(seed, x0, y0, tileWidth, tileHeight, null);
+        }
+        int belowWidth = widths[level - 1];
+        int belowHeight = heights[level - 1];
+        int sourceX = 2 * x0;
+        int sourceWidth = Math.min(2 * tileWidth, belowWidth - sourceX);
+        int[] tile = new int[tileWidth * tileHeight];
+        int[] upper = new int[sourceWidth];
+        int[] lower = new int[sourceWidth];
+        for (int j = 0; j < tileHeight; j++) {
+            int sourceY = 2 * (y0 + j);
+            readRow(level - 1, sourceX, sourceY, sourceWidth, upper);
+            if (sourceY + 1 < belowHeight) {
+                readRow(level - 1, sourceX, sourceY + 1, sourceWidth, lower);
+            } else {
+                System.arraycopy(upper, 0, lower, 0, sourceWidth);
+            }
+            for (int i = 0, o = j * tileWidth; i < tileWidth; i++, o++) {
+                int left = 2 * i;
+                int right = Math.min(left + 1, sourceWidth - 1);
+                tile[o] = average(upper[left], upper[right], lower[left], lower[right]);
+            }
+        }
+        return tile;
+    }
+
+    private int columns(int level) {
+        return (widths[level] + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int alpha = ((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2;
+        int red = ((a >> 16 & 0xff) + (b >> 16 & 0xff) + (c >> 16 & 0xff) + (d >> 16 & 0xff) + 2) >> 2;
+        int green = ((a >> 8 & 0xff) + (b >> 8 & 0xff) + (c >> 8 & 0xff) + (d >> 8 & 0xff) + 2) >> 2;
+        int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    private void trim() {
+        Iterator<int[]> eldest = tiles.values().iterator();
+        while (bytes > budget && eldest.hasNext()) {
+            bytes -= 4L * eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    private static long key(int level, int tx, int ty) {
+        return (long) level << 56 | (long) ty << 28 | tx;
+    }
+}
@@ -0,0 +1,129 @@
+// Saving the image to a file. PNGs go through PngEncoder (deflated on every filter thread); JPEG is the fast, lossy
+// option, through the JDK's writer with a quality setting.
+// Both write to a temp file next to the target and move it into place at the end, so a failed or cancelled save
+// leaves whatever was there before.
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DirectColorModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+final class ImageSaver {
+    static final float DEFAULT_JPEG_QUALITY = 0.9f;
+
+    private interface Encoder {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private ImageSaver() {
+    }
+
+    static void savePng(BufferedImage image, File file, int level, PngEncoder.Filter filter, JobProgress progress) throws IOException {
+        PngEncoder encoder = new PngEncoder(level, filter);
+        replace(file, out -> encoder.write(image, out, progress));
+    }
+
+    static void saveJpeg(BufferedImage image, File file, float quality, JobProgress progress) throws IOException {
+        replace(file, out -> {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+                writer.setOutput(output);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                reportProgress(writer, progress);
+                writer.write(null, new IIOImage(opaque(image), null, null), param);
+                progress.checkCancelled();
+            } finally {
+                writer.dispose();
+            }
+        });
+    }
+
+    // JPEG has no alpha channel. For packed int images this is a view of the same pixels without the alpha band, so
+    // nothing is copied even when the image is memory-mapped.
+    private static BufferedImage opaque(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getColorModel() instanceof DirectColorModel) {
+            WritableRaster rgb = image.getRaster().createWritableChild(0, 0, width, height, 0, 0, new int[]{0, 1, 2});
+            return new BufferedImage(new DirectColorModel(24, 0xff0000, 0xff00, 0xff), rgb, false, null);
+        }
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    private static void reportProgress(ImageWriter writer, JobProgress progress) {
+        progress.beginPass(100);
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+            private int reported;
+
+            @Override
+            public void imageProgress(ImageWriter source, float percentageDone) {
+                int done = Math.min(100, (int) percentageDone);
+                if (done > reported) {
+                    progress.worked(done - reported);
+                    reported = done;
+                }
+                if (progress.isCancelled()) {
+                    source.abort();
+                }
+            }
+
+            @Override
+            public void imageStarted(ImageWriter source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageWriter source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageWriter source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageWriter source) {
+            }
+
+            @Override
+            public void writeAborted(ImageWriter source) {
+            }
+        });
+    }
+
+    private static void replace(File file, Encoder encoder) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("photoeditor-save", ".tmp", directory);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 1 << 16)) {
+                encoder.write(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
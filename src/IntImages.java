@@ -0,0 +1,107 @@
+// Helpers for getting at the int[] behind a BufferedImage so filters can walk it row by row instead of calling getRGB/setRGB per pixel.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+final class IntImages {
+    private IntImages() {
+    }
+
+    // A DataBuffer whose pixels aren't one int[] on the heap (a memory-mapped file, an opened project's tiles) but
+    // can still copy runs of them in and out in bulk. Index is y * width + x, as for a plain packed image.
+    interface BulkIntBuffer {
+        void get(int index, int[] destination, int offset, int length);
+
+        void put(int index, int[] source, int offset, int length);
+    }
+
+    // Returns the image itself if it is already a plain TYPE_INT_RGB/TYPE_INT_ARGB image, otherwise a converted copy.
+    // ImageIO usually hands back TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR, so opened images go through here once.
+    static BufferedImage toIntRGB(BufferedImage image) {
+        if (isPackedInt(image)) {
+            return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        if (MappedImage.isMapped(image)) {
+            // Already packed ints, just not on the heap: a straight copy, no color conversion.
+            readRect(image, 0, 0, image.getWidth(), image.getHeight(), pixels(converted));
+            return converted;
+        }
+        Graphics2D graphics = converted.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return converted;
+    }
+
+    // A blank image with the same size and type, for filters that need somewhere separate to write.
+    static BufferedImage createCompatible(BufferedImage image) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        return new BufferedImage(image.getWidth(), image.getHeight(), type);
+    }
+
+    // The pixels of a packed int image, row after row with no padding (index = y * width + x).
+    static int[] pixels(BufferedImage image) {
+        if (!isPackedInt(image)) {
+            throw new IllegalArgumentException("Image must be converted with IntImages.toIntRGB first");
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // Copies the w x h rectangle at (x, y) into destination (row after row, no padding). Works on any image, and does
+    // bulk copies for heap, memory-mapped and project int images, so filters can stream big images a band at a time.
+    static int[] readRect(BufferedImage image, int x, int y, int w, int h, int[] destination) {
+        if (destination == null || destination.length < w * h) {
+            destination = new int[w * h];
+        }
+        int width = image.getWidth();
+        if (isPackedInt(image)) {
+            int[] pixels = pixels(image);
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(pixels, (y + row) * width + x, destination, row * w, w);
+            }
+        } else if (MappedImage.isMapped(image)) {
+            BulkIntBuffer buffer = (BulkIntBuffer) image.getRaster().getDataBuffer();
+            for (int row = 0; row < h; row++) {
+                buffer.get((y + row) * width + x, destination, row * w, w);
+            }
+        } else {
+            image.getRGB(x, y, w, h, destination, 0, w);
+        }
+        return destination;
+    }
+
+    // The reverse of readRect.
+    static void writeRect(BufferedImage image, int x, int y, int w, int h, int[] source) {
+        int width = image.getWidth();
+        if (isPackedInt(image)) {
+            int[] pixels = pixels(image);
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(source, row * w, pixels, (y + row) * width + x, w);
+            }
+        } else if (MappedImage.isMapped(image)) {
+            BulkIntBuffer buffer = (BulkIntBuffer) image.getRaster().getDataBuffer();
+            for (int row = 0; row < h; row++) {
+                buffer.put((y + row) * width + x, source, row * w, w);
+            }
+        } else {
+            image.setRGB(x, y, w, h, source, 0, w);
+        }
+    }
+
+    static boolean isPackedInt(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return false;
+        }
+        // Sub-images share their parent's buffer with an offset, so they don't count.
+        if (image.getRaster().getParent() != null || image.getRaster().getSampleModelTranslateX() != 0
+                || image.getRaster().getSampleModelTranslateY() != 0) {
+            return false;
+        }
+        SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) image.getSampleModel();
+        return sampleModel.getScanlineStride() == image.getWidth() && image.getRaster().getDataBuffer().getOffset() == 0;
+    }
+}
@@ -0,0 +1,63 @@
+// Progress and cancellation for one background job. TileExecutor reports finished tiles here and checks for
+// cancellation before starting each tile, so a cancelled filter stops within one tile's worth of work.
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class JobProgress {
+    // For callers that don't need progress. It can't be cancelled and ignores updates.
+    static final JobProgress NONE = new JobProgress();
+
+    private volatile boolean cancelled;
+    private volatile int expectedPasses = 1;
+    private volatile int passesStarted;
+    private volatile long passUnits = 1;
+    private final AtomicLong passDone = new AtomicLong();
+
+    // Filters that sweep the image several times say so up front, so the bar doesn't go back to 0 at every pass.
+    void expectPasses(int passes) {
+        if (this != NONE) {
+            expectedPasses = Math.max(1, passes);
+        }
+    }
+
+    synchronized void beginPass(long units) {
+        if (this != NONE) {
+            passesStarted++;
+            passUnits = Math.max(1, units);
+            passDone.set(0);
+        }
+    }
+
+    void worked(long units) {
+        if (this != NONE) {
+            passDone.addAndGet(units);
+        }
+    }
+
+    // From 0 to 1.
+    double fraction() {
+        int started = passesStarted;
+        if (started == 0) {
+            return 0;
+        }
+        double currentPass = Math.min(1.0, passDone.get() / (double) passUnits);
+        return Math.min(1.0, (started - 1 + currentPass) / Math.max(expectedPasses, started));
+    }
+
+    void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+// Runs jobs one at a time on a background thread so long filters don't freeze the event dispatch thread.
+// Jobs queue up behind each other. A job's result is handed to its callback on the EDT, and the next job doesn't start
+// until that callback has returned, so each job sees the image the previous one produced.
+
+import javax.swing.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+final class JobScheduler {
+    interface Job<T> {
+        T run(JobProgress progress) throws Exception;
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PhotoEditor jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<JobProgress> pending = ConcurrentHashMap.newKeySet();
+    private volatile JobProgress running;
+    private volatile String runningName;
+
+    <T> void submit(String name, Job<T> job, Consumer<T> onSuccess) {
+        JobProgress progress = new JobProgress();
+        pending.add(progress);
+        worker.execute(() -> {
+            try {
+                if (progress.isCancelled()) {
+                    return;
+                }
+                running = progress;
+                runningName = name;
+                T result = job.run(progress);
+                progress.checkCancelled();
+                SwingUtilities.invokeAndWait(() -> onSuccess.accept(result));
+            } catch (CancellationException cancelled) {
+                // Nothing was published, so the image is still what it was before the job started.
+            } catch (Exception exception) {
+                exception.printStackTrace();
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null,
+                        name + " failed: " + exception, "PhotoEditor", JOptionPane.ERROR_MESSAGE));
+            } finally {
+                running = null;
+                runningName = null;
+                pending.remove(progress);
+            }
+        });
+    }
+
+    // Stops the running job and drops everything queued behind it.
+    void cancelAll() {
+        for (JobProgress progress : pending) {
+            progress.cancel();
+        }
+    }
+
+    boolean isBusy() {
+        return !pending.isEmpty();
+    }
+
+    // The job currently running, or null. Polled by the progress bar.
+    JobProgress getRunning() {
+        return running;
+    }
+
+    String getRunningName() {
+        return runningName;
+    }
+
+    // Lets a job read Swing-owned state (like the current image) from the worker thread.
+    static <T> T onEventThread(Supplier<T> supplier) throws InterruptedException {
+        if (SwingUtilities.isEventDispatchThread()) {
+            return supplier.get();
+        }
+        AtomicReference<T> value = new AtomicReference<>();
+        try {
+            SwingUtilities.invokeAndWait(() -> value.set(supplier.get()));
+        } catch (InvocationTargetException exception) {
+            throw new IllegalStateException(exception.getCause());
+        }
+        return value.get();
+    }
+}
@@ -0,0 +1,56 @@
+// Rolling latency statistics: the last WINDOW samples in a ring, sorted on demand when someone asks for percentiles.
+// Recording is a couple of array writes, which matters because canvas frames record one each.
+
+import java.util.Arrays;
+
+final class LatencyHistogram implements LatencyHistogramMXBean {
+    private static final int WINDOW = 1024;
+
+    private final long[] samples = new long[WINDOW];
+    private long count;
+    private long last;
+
+    synchronized void record(long nanos) {
+        samples[(int) (count % WINDOW)] = nanos;
+        count++;
+        last = nanos;
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized double getLastMillis() {
+        return last / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return percentile(1);
+    }
+
+    private double percentile(double fraction) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,13 @@
+// What PerformanceMonitor publishes over JMX for each kind of operation. All times are over the most recent samples.
+
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getLastMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,122 @@
+// A point filter stored as a size x size x size color cube and applied with trilinear interpolation.
+// Used for transforms that mix channels (like greyscale) and for .cube files. Entries are kept in 8.8 fixed point so
+// interpolating between them doesn't lose precision before the final rounding.
+
+import java.util.Arrays;
+
+final class Lut3D implements PackedColorTransformer {
+    static final int DEFAULT_SIZE = 33;
+
+    private final int size;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    // For each 8-bit channel value: the lower grid index, and how far (0-256) it is towards the next one.
+    private final int[] gridIndex = new int[256];
+    private final int[] gridWeight = new int[256];
+
+    // Tables hold size^3 entries in 8.8 fixed point (0-65280), with red changing fastest, as in .cube files.
+    Lut3D(int size, int[] red, int[] green, int[] blue) {
+        if (size < 2 || red.length != size * size * size || green.length != red.length || blue.length != red.length) {
+            throw new IllegalArgumentException("A " + size + " point cube needs " + size * size * size + " entries per channel");
+        }
+        this.size = size;
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        for (int v = 0; v < 256; v++) {
+            int position = v * (size - 1);
+            int index = position / 255;
+            int weight = (position % 255) * 256 / 255;
+            if (index == size - 1) {
+                index = size - 2;
+                weight = 256;
+            }
+            gridIndex[v] = index;
+            gridWeight[v] = weight;
+        }
+    }
+
+    static Lut3D sample(PackedColorTransformer transformer, int size) {
+        int entries = size * size * size;
+        int[] red = new int[entries];
+        int[] green = new int[entries];
+        int[] blue = new int[entries];
+        int i = 0;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    int in = 0xFF000000 | gridValue(r, size) << 16 | gridValue(g, size) << 8 | gridValue(b, size);
+                    int out = transformer.transformPixel(in);
+                    red[i] = ((out >> 16) & 0xFF) << 8;
+                    green[i] = ((out >> 8) & 0xFF) << 8;
+                    blue[i] = (out & 0xFF) << 8;
+                    i++;
+                }
+            }
+        }
+        return new Lut3D(size, red, green, blue);
+    }
+
+    private static int gridValue(int index, int size) {
+        return (index * 255 + (size - 1) / 2) / (size - 1);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Lut3D)) {
+            return false;
+        }
+        Lut3D lut = (Lut3D) other;
+        return size == lut.size && Arrays.equals(red, lut.red) && Arrays.equals(green, lut.green) && Arrays.equals(blue, lut.blue);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(red) + Arrays.hashCode(green)) + Arrays.hashCode(blue);
+    }
+
+    @Override
+    public int transformPixel(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int base = gridIndex[r] + size * (gridIndex[g] + size * gridIndex[b]);
+        int wr = gridWeight[r];
+        int wg = gridWeight[g];
+        int wb = gridWeight[b];
+        return (argb & 0xFF000000)
+                | toByte(interpolate(red, base, wr, wg, wb)) << 16
+                | toByte(interpolate(green, base, wr, wg, wb)) << 8
+                | toByte(interpolate(blue, base, wr, wg, wb));
+    }
+
+    @Override
+    public void transformRow(int[] in, int[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = transformPixel(in[i]);
+        }
+    }
+
+    private int interpolate(int[] table, int base, int wr, int wg, int wb) {
+        int rowStep = size;
+        int planeStep = size * size;
+        int c00 = lerp(table[base], table[base + 1], wr);
+        int c10 = lerp(table[base + rowStep], table[base + rowStep + 1], wr);
+        int c01 = lerp(table[base + planeStep], table[base + planeStep + 1], wr);
+        int c11 = lerp(table[base + planeStep + rowStep], table[base + planeStep + rowStep + 1], wr);
+        return lerp(lerp(c00, c10, wg), lerp(c01, c11, wg), wb);
+    }
+
+    private static int lerp(int a, int b, int weight) {
+        return a + (((b - a) * weight) >> 8);
+    }
+
+    private static int toByte(int fixed) {
+        return Math.min(Math.max((fixed + 128) >> 8, 0), 255);
+    }
+}
@@ -0,0 +1,194 @@
+// Turns point filters into lookup tables, so applying them costs a few array reads per pixel instead of running
+// the filter's own code tens of millions of times. Also reads Adobe/Resolve .cube LUT files.
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+final class LutCompiler {
+    // Grid of probe colors used to decide whether a transformer treats its channels independently.
+    private static final int PROBE_STEPS = 16;
+
+    private LutCompiler() {
+    }
+
+    // A ChannelLut if the transformer gives the same answers as its per-channel tables on every probe color,
+    // otherwise a 33^3 Lut3D. Greyscale, for example, mixes channels and ends up as a Lut3D.
+    static PackedColorTransformer compile(PackedColorTransformer transformer) {
+        if (transformer instanceof ChannelLut || transformer instanceof Lut3D) {
+            return transformer;
+        }
+        ChannelLut channels = ChannelLut.sample(transformer);
+        if (isSeparable(transformer, channels)) {
+            return channels;
+        }
+        return Lut3D.sample(transformer, Lut3D.DEFAULT_SIZE);
+    }
+
+    private static boolean isSeparable(PackedColorTransformer transformer, ChannelLut channels) {
+        for (int r = 0; r < PROBE_STEPS; r++) {
+            for (int g = 0; g < PROBE_STEPS; g++) {
+                for (int b = 0; b < PROBE_STEPS; b++) {
+                    // Spread the probes over 0-255, and offset each channel differently so they never line up.
+                    int argb = 0xFF000000 | probe(r, 0) << 16 | probe(g, 5) << 8 | probe(b, 11);
+                    if (transformer.transformPixel(argb) != channels.transformPixel(argb)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int probe(int step, int offset) {
+        return Math.min(step * 17 + offset, 255);
+    }
+
+    // Reads a .cube file. LUT_3D_SIZE files become a Lut3D at their own size; LUT_1D_SIZE files become a ChannelLut.
+    // DOMAIN_MIN and DOMAIN_MAX give the input range the table's entries are spread over (0 to 1 if missing); the
+    // entries themselves are output colors from 0 to 1 whatever the domain. So a table with a different domain is
+    // resampled at the inputs 0 to 1, and input values outside its domain get its edge entries.
+    // Tables smaller than 2 entries a side, empty domains and wrong entry counts are IOExceptions.
+    static PackedColorTransformer readCube(File file) throws IOException {
+        int size3d = 0;
+        int size1d = 0;
+        float[] domainMin = {0, 0, 0};
+        float[] domainMax = {1, 1, 1};
+        List<float[]> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("TITLE")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts[0].equals("LUT_3D_SIZE")) {
+                    size3d = parseSize(parts, file);
+                } else if (parts[0].equals("LUT_1D_SIZE")) {
+                    size1d = parseSize(parts, file);
+                } else if (parts[0].equals("DOMAIN_MIN")) {
+                    domainMin = parseTriple(parts, 1, file);
+                } else if (parts[0].equals("DOMAIN_MAX")) {
+                    domainMax = parseTriple(parts, 1, file);
+                } else if (Character.isLetter(parts[0].charAt(0))) {
+                    // Some tools add their own keywords; they don't change the table.
+                    continue;
+                } else {
+                    entries.add(parseTriple(parts, 0, file));
+                }
+            }
+        } catch (NumberFormatException exception) {
+            throw new IOException("Bad number in " + file + ": " + exception.getMessage());
+        }
+        for (int c = 0; c < 3; c++) {
+            // NaN fails this too.
+            if (!(domainMax[c] > domainMin[c])) {
+                throw new IOException(file + " has a DOMAIN_MAX that isn't above its DOMAIN_MIN");
+            }
+        }
+
+        if (size3d > 0) {
+            long count = (long) size3d * size3d * size3d;
+            if (entries.size() != count) {
+                throw new IOException(file + " should have " + count + " entries but has " + entries.size());
+            }
+            // Where each grid index (input (index / (size - 1))) falls in the file's table, per channel.
+            double[][] positions = new double[3][size3d];
+            for (int c = 0; c < 3; c++) {
+                for (int i = 0; i < size3d; i++) {
+                    positions[c][i] = position(i / (double) (size3d - 1), domainMin[c], domainMax[c], size3d);
+                }
+            }
+            int[][] tables = new int[3][entries.size()];
+            int i = 0;
+            for (int b = 0; b < size3d; b++) {
+                for (int g = 0; g < size3d; g++) {
+                    for (int r = 0; r < size3d; r++) {
+                        float[] color = sample(entries, size3d, positions[0][r], positions[1][g], positions[2][b]);
+                        for (int c = 0; c < 3; c++) {
+                            tables[c][i] = toFixed(color[c]);
+                        }
+                        i++;
+                    }
+                }
+            }
+            return new Lut3D(size3d, tables[0], tables[1], tables[2]);
+        }
+        if (size1d > 0) {
+            if (entries.size() != size1d) {
+                throw new IOException(file + " should have " + size1d + " entries but has " + entries.size());
+            }
+            int[][] tables = new int[3][256];
+            for (int v = 0; v < 256; v++) {
+                for (int c = 0; c < 3; c++) {
+                    double position = position(v / 255.0, domainMin[c], domainMax[c], size1d);
+                    int index = Math.min((int) position, size1d - 2);
+                    double weight = position - index;
+                    double value = entries.get(index)[c] * (1 - weight) + entries.get(index + 1)[c] * weight;
+                    tables[c][v] = (toFixed((float) value) + 128) >> 8;
+                }
+            }
+            return new ChannelLut(tables[0], tables[1], tables[2]);
+        }
+        throw new IOException(file + " has no LUT_3D_SIZE or LUT_1D_SIZE line");
+    }
+
+    // A table needs at least two entries per side to interpolate between.
+    private static int parseSize(String[] parts, File file) throws IOException {
+        if (parts.length < 2) {
+            throw new IOException("Expected a size in " + file + ": " + String.join(" ", parts));
+        }
+        int size = Integer.parseInt(parts[1]);
+        if (size < 2) {
+            throw new IOException(parts[0] + " in " + file + " must be at least 2, not " + size);
+        }
+        return size;
+    }
+
+    private static float[] parseTriple(String[] parts, int start, File file) throws IOException {
+        if (parts.length < start + 3) {
+            throw new IOException("Expected three numbers in " + file + ": " + String.join(" ", parts));
+        }
+        return new float[]{Float.parseFloat(parts[start]), Float.parseFloat(parts[start + 1]), Float.parseFloat(parts[start + 2])};
+    }
+
+    // Where input (0 to 1) falls in a table of size entries spread over [min, max], as a fractional index.
+    private static double position(double input, float min, float max, int size) {
+        double normalized = (input - min) / (max - min);
+        return Math.min(Math.max(normalized, 0), 1) * (size - 1);
+    }
+
+    // Trilinear interpolation in a .cube table (red changing fastest) at fractional indices r, g, b.
+    private static float[] sample(List<float[]> entries, int size, double r, double g, double b) {
+        int r0 = Math.min((int) r, size - 2);
+        int g0 = Math.min((int) g, size - 2);
+        int b0 = Math.min((int) b, size - 2);
+        double wr = r - r0;
+        double wg = g - g0;
+        double wb = b - b0;
+        float[] color = new float[3];
+        for (int corner = 0; corner < 8; corner++) {
+            int dr = corner & 1;
+            int dg = corner >> 1 & 1;
+            int db = corner >> 2;
+            double weight = (dr == 0 ? 1 - wr : wr) * (dg == 0 ? 1 - wg : wg) * (db == 0 ? 1 - wb : wb);
+            if (weight == 0) {
+                continue;
+            }
+            float[] entry = entries.get((r0 + dr) + size * ((g0 + dg) + size * (b0 + db)));
+            for (int c = 0; c < 3; c++) {
+                color[c] += (float) (entry[c] * weight);
+            }
+        }
+        return color;
+    }
+
+    // .cube outputs run from 0 to 1; Lut3D wants 8.8 fixed point.
+    private static int toFixed(float value) {
+        return Math.round(Math.min(Math.max(value, 0), 1) * 255 * 256);
+    }
+}
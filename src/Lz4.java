@@ -0,0 +1,145 @@
+// LZ4 block compression (the raw block format, no frame header), for project file tiles.
+//
+// LZ4 gives up some ratio against Deflate for speed: it decompresses at memory speed, so opening a project and
+// scrolling around in it is mostly I/O bound. Matches are found through a single-entry hash table of the last place
+// each 4 byte sequence was seen, and the search skips ahead faster through data that isn't matching (noise, say).
+
+import java.io.IOException;
+import java.util.Arrays;
+
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    // The format needs the last 5 bytes to be literals and the last match to start 12 bytes before the end.
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private Lz4() {
+    }
+
+    // The most compress() can write for length bytes of input.
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    // Compresses source[0, length) into destination, which must hold maxCompressedLength(length) bytes. Returns the
+    // compressed length.
+    static int compress(byte[] source, int length, byte[] destination) {
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int out = 0;
+        int matchLimit = length - MATCH_FIND_LIMIT;
+        int extendLimit = length - LAST_LITERALS;
+        int in = 1;
+        while (in < matchLimit) {
+            int sequence = readInt(source, in);
+            int slot = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[slot];
+            table[slot] = in;
+            if (candidate < 0 || in - candidate > MAX_OFFSET || readInt(source, candidate) != sequence) {
+                in += 1 + ((in - anchor) >>> 6);
+                continue;
+            }
+            while (in > anchor && candidate > 0 && source[in - 1] == source[candidate - 1]) {
+                in--;
+                candidate--;
+            }
+            int matchLength = MIN_MATCH;
+            while (in + matchLength < extendLimit && source[candidate + matchLength] == source[in + matchLength]) {
+                matchLength++;
+            }
+            int token = out++;
+            int literals = in - anchor;
+            out = writeLength(destination, out, literals);
+            System.arraycopy(source, anchor, destination, out, literals);
+            out += literals;
+            int offset = in - candidate;
+            destination[out++] = (byte) offset;
+            destination[out++] = (byte) (offset >>> 8);
+            out = writeLength(destination, out, matchLength - MIN_MATCH);
+            destination[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength - MIN_MATCH, 15));
+            in += matchLength;
+            anchor = in;
+        }
+        int literals = length - anchor;
+        destination[out++] = (byte) (Math.min(literals, 15) << 4);
+        out = writeLength(destination, out, literals);
+        System.arraycopy(source, anchor, destination, out, literals);
+        return out + literals;
+    }
+
+    // The bytes after a token that carry a length of 15 or more.
+    private static int writeLength(byte[] destination, int out, int length) {
+        if (length < 15) {
+            return out;
+        }
+        length -= 15;
+        while (length >= 255) {
+            destination[out++] = (byte) 255;
+            length -= 255;
+        }
+        destination[out++] = (byte) length;
+        return out;
+    }
+
+    // Decompresses source[offset, offset + length) into destination, which has to come out exactly full.
+    static void decompress(byte[] source, int offset, int length, byte[] destination) throws IOException {
+        int in = offset;
+        int end = offset + length;
+        int out = 0;
+        try {
+            while (true) {
+                int token = source[in++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int more;
+                    do {
+                        more = source[in++] & 0xFF;
+                        literals += more;
+                    } while (more == 255);
+                }
+                System.arraycopy(source, in, destination, out, literals);
+                in += literals;
+                out += literals;
+                if (in >= end) {
+                    break;
+                }
+                int distance = (source[in] & 0xFF) | (source[in + 1] & 0xFF) << 8;
+                in += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int more;
+                    do {
+                        more = source[in++] & 0xFF;
+                        matchLength += more;
+                    } while (more == 255);
+                }
+                matchLength += MIN_MATCH;
+                int from = out - distance;
+                if (distance == 0 || from < 0) {
+                    throw new IOException("Corrupt LZ4 block");
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(destination, from, destination, out, matchLength);
+                    out += matchLength;
+                } else {
+                    // Overlapping copies repeat the last distance bytes, so they go a byte at a time.
+                    for (int i = 0; i < matchLength; i++) {
+                        destination[out++] = destination[from + i];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException exception) {
+            throw new IOException("Corrupt LZ4 block", exception);
+        }
+        if (out != destination.length || in != end) {
+            throw new IOException("Corrupt LZ4 block");
+        }
+    }
+
+    private static int readInt(byte[] bytes, int i) {
+        return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | bytes[i + 3] << 24;
+    }
+}
@@ -0,0 +1,262 @@
+// Images too big for the Java heap. The pixels live in a temp file mapped into memory, so the OS pages them in and
+// out as they are used and heap use stays small whatever the image size.
+//
+// The result is an ordinary BufferedImage (packed int RGB/ARGB on a MappedIntBuffer), so drawing, scribbling,
+// getRGB/setRGB and ImageIO.write all keep working. Filters get at whole rows or tiles through IntImages.readRect and
+// IntImages.writeRect, which do bulk copies from the mapping.
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+final class MappedImage {
+    // Images with more pixels than this (in millions) go to a mapped file. -Dphotoeditor.mappedMegapixels=N changes it.
+    static final long THRESHOLD_PIXELS = Long.getLong("photoeditor.mappedMegapixels", 100) * 1_000_000;
+
+    // Rows decoded at a time when a codec can't write straight into a mapped image.
+    private static final int DECODE_STRIP_ROWS = 256;
+
+    private MappedImage() {
+    }
+
+    static boolean isLarge(int width, int height) {
+        return (long) width * height > THRESHOLD_PIXELS;
+    }
+
+    // The number of pixels in a width x height image. Rasters index pixels with an int, so that caps an image at
+    // Integer.MAX_VALUE of them (about 46000 x 46000), mapped or not; anything bigger can't be opened or made at all.
+    static int pixelCount(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " image is too big: images can have at most "
+                    + Integer.MAX_VALUE + " pixels");
+        }
+        return (int) pixels;
+    }
+
+    // True for any image whose pixels are off the heap: mapped ones, and opened projects (ProjectTiles).
+    static boolean isMapped(BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof IntImages.BulkIntBuffer;
+    }
+
+    // A mapped image if it is over the threshold, otherwise a normal one.
+    static BufferedImage create(int width, int height, boolean alpha) {
+        if (!isLarge(width, height)) {
+            return new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        }
+        try {
+            return wrap(width, height, alpha, new MappedIntBuffer(pixelCount(width, height)));
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Couldn't create a scratch file for a " + width + "x" + height + " image", exception);
+        }
+    }
+
+    // A packed int RGB/ARGB image over pixels kept somewhere other than an int[] (index = y * width + x).
+    static BufferedImage wrap(int width, int height, boolean alpha, DataBuffer pixels) {
+        int[] masks = alpha ? new int[]{0xFF0000, 0xFF00, 0xFF, 0xFF000000} : new int[]{0xFF0000, 0xFF00, 0xFF};
+        DirectColorModel colorModel = alpha ? new DirectColorModel(32, masks[0], masks[1], masks[2], masks[3])
+                : new DirectColorModel(24, masks[0], masks[1], masks[2]);
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, masks);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, pixels, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    static BufferedImage createCompatible(BufferedImage image) {
+        return create(image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+    }
+
+    // Decodes an image file. Small images are read normally; large ones go into a mapped image without the whole
+    // decoded image ever being on the heap. PNG and JPEG readers write straight into it, other codecs a strip at a time.
+    static BufferedImage read(File file, JobProgress progress) throws IOException {
+        BufferedImage image;
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Before any decoding, so a file too big to hold fails straight away.
+                pixelCount(width, height);
+                reportProgress(reader, progress);
+                if (!isLarge(width, height)) {
+                    BufferedImage decoded = reader.read(0);
+                    progress.checkCancelled();
+                    return IntImages.toIntRGB(decoded);
+                }
+                ImageTypeSpecifier type = reader.getRawImageType(0);
+                boolean alpha = type != null && type.getColorModel().hasAlpha();
+                image = create(width, height, alpha);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(image);
+                try {
+                    reader.read(0, param);
+                    progress.checkCancelled();
+                    return image;
+                } catch (ClassCastException | IllegalArgumentException unsupported) {
+                    // This codec insists on its own buffer type; fall back to strips below.
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        // The failed attempt can leave the reader half way through the stream, so start again with a fresh one.
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                int width = image.getWidth();
+                int height = image.getHeight();
+                progress.beginPass((height + DECODE_STRIP_ROWS - 1) / DECODE_STRIP_ROWS);
+                for (int y = 0; y < height; y += DECODE_STRIP_ROWS) {
+                    progress.checkCancelled();
+                    int rows = Math.min(DECODE_STRIP_ROWS, height - y);
+                    ImageReadParam stripParam = reader.getDefaultReadParam();
+                    stripParam.setSourceRegion(new Rectangle(0, y, width, rows));
+                    BufferedImage strip = reader.read(0, stripParam);
+                    int[] pixels = strip.getRGB(0, 0, width, rows, null, 0, width);
+                    IntImages.writeRect(image, 0, y, width, rows, pixels);
+                    progress.worked(1);
+                }
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Codecs say how far through the image they are as they decode, so the progress bar moves during a long open,
+    // and Cancel stops the decode instead of waiting for it to finish.
+    private static void reportProgress(ImageReader reader, JobProgress progress) {
+        progress.beginPass(100);
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            private int reported;
+
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+                int done = Math.min(100, (int) percentageDone);
+                if (done > reported) {
+                    progress.worked(done - reported);
+                    reported = done;
+                }
+                if (progress.isCancelled()) {
+                    source.abort();
+                }
+            }
+
+            @Override
+            public void sequenceStarted(ImageReader source, int minIndex) {
+            }
+
+            @Override
+            public void sequenceComplete(ImageReader source) {
+            }
+
+            @Override
+            public void imageStarted(ImageReader source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageReader source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageReader source) {
+            }
+
+            @Override
+            public void readAborted(ImageReader source) {
+            }
+        });
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, File file) throws IOException {
+        Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("Not an image file: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    // A packed int DataBuffer stored in a memory-mapped temp file, mapped in 256 MB windows.
+    static final class MappedIntBuffer extends DataBuffer implements IntImages.BulkIntBuffer {
+        private static final int CHUNK_SHIFT = 26;
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final IntBuffer[] chunks;
+
+        MappedIntBuffer(int size) throws IOException {
+            super(TYPE_INT, size);
+            File file = File.createTempFile("photoeditor-image", ".raw");
+            try (RandomAccessFile scratch = new RandomAccessFile(file, "rw"); FileChannel channel = scratch.getChannel()) {
+                long bytes = 4L * size;
+                scratch.setLength(bytes);
+                chunks = new IntBuffer[(int) ((size + (long) CHUNK_MASK) >>> CHUNK_SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << (CHUNK_SHIFT + 2);
+                    // The mapping stays valid after the channel is closed.
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(bytes - start, 1L << (CHUNK_SHIFT + 2)))
+                            .order(ByteOrder.nativeOrder()).asIntBuffer();
+                }
+            } finally {
+                // The mapping outlives the name, so the file goes now rather than piling up in the temp directory
+                // until a clean exit. Windows won't delete a mapped file; there it has to wait for the exit.
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return chunks[i >>> CHUNK_SHIFT].get(i & CHUNK_MASK);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            chunks[i >>> CHUNK_SHIFT].put(i & CHUNK_MASK, val);
+        }
+
+        @Override
+        public void get(int index, int[] destination, int offset, int length) {
+            while (length > 0) {
+                int inChunk = Math.min(length, (1 << CHUNK_SHIFT) - (index & CHUNK_MASK));
+                chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK, destination, offset, inChunk);
+                index += inChunk;
+                offset += inChunk;
+                length -= inChunk;
+            }
+        }
+
+        @Override
+        public void put(int index, int[] source, int offset, int length) {
+            while (length > 0) {
+                int inChunk = Math.min(length, (1 << CHUNK_SHIFT) - (index & CHUNK_MASK));
+                chunks[index >>> CHUNK_SHIFT].put(index & CHUNK_MASK, source, offset, inChunk);
+                index += inChunk;
+                offset += inChunk;
+                length -= inChunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// Same idea as ColorTransformer, but works on a packed 0xAARRGGBB int so a filter doesn't need a new Color for every pixel.
+
+@FunctionalInterface
+interface PackedColorTransformer {
+    int transformPixel(int argb);
+
+    // Transforms in[from, to) into out[from, to). Table-based transformers override this with a tighter loop.
+    default void transformRow(int[] in, int[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = transformPixel(in[i]);
+        }
+    }
+
+    // Lets the old (r, g, b) -> Color lambdas run on the packed path.
+    static PackedColorTransformer of(ColorTransformer transformer) {
+        return argb -> transformer.transformColor((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF).getRGB();
+    }
+}
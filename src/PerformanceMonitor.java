@@ -0,0 +1,163 @@
+// Timings for the things that make the editor feel slow: filters, opening, saving and canvas frames.
+//
+// Each one is a JDK Flight Recorder event carrying the image size and the operation's parameters (record with
+// -XX:StartFlightRecording and look under "PhotoEditor" in JDK Mission Control, where GC pauses from the same
+// recording line up against them), and a sample in a rolling LatencyHistogram published over JMX as
+// PhotoEditor:type=Latency,name=<kind>. The canvas overlay reads the same numbers.
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+final class PerformanceMonitor {
+    static final String FILTER = "Filter";
+    static final String OPEN = "Open";
+    static final String FIRST_PIXELS = "Open to first pixels";
+    static final String SAVE = "Save";
+    static final String FRAME = "Frame";
+
+    private static final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private static volatile String lastOperation = "none yet";
+
+    static {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String kind : new String[]{FILTER, OPEN, FIRST_PIXELS, SAVE, FRAME}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histograms.put(kind, histogram);
+            try {
+                server.registerMBean(histogram, new ObjectName("PhotoEditor:type=Latency,name=" + ObjectName.quote(kind)));
+            } catch (JMException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private PerformanceMonitor() {
+    }
+
+    @Name("photoeditor.Operation")
+    @Label("Editor Operation")
+    @Category("PhotoEditor")
+    @Description("A filter, open or save, from start until its result was ready")
+    @StackTrace(false)
+    static class OperationEvent extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Name")
+        String name;
+        @Label("Parameters")
+        String parameters;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+    }
+
+    @Name("photoeditor.Frame")
+    @Label("Canvas Frame")
+    @Category("PhotoEditor")
+    @Description("One repaint of the canvas")
+    @StackTrace(false)
+    static class FrameEvent extends Event {
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Pixels Redrawn")
+        long pixelsRedrawn;
+        @Label("Zoom")
+        double zoom;
+    }
+
+    // Started when an operation begins; finish it once the result is ready. Failed or cancelled operations are
+    // simply never finished, so they don't count.
+    static final class Timing {
+        private final OperationEvent event = new OperationEvent();
+        private final long start;
+
+        private Timing(String kind, String name, Object parameters) {
+            event.kind = kind;
+            event.name = name;
+            event.parameters = describe(parameters);
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        // image is whatever the operation worked on, for the size.
+        void finish(BufferedImage image) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            event.width = image.getWidth();
+            event.height = image.getHeight();
+            event.commit();
+            histograms.get(event.kind).record(nanos);
+            lastOperation = String.format(Locale.ROOT, "%s %s: %.0f ms on %dx%d", event.kind, event.name, nanos / 1e6,
+                    event.width, event.height);
+        }
+    }
+
+    static final class FrameTiming {
+        private final FrameEvent event = new FrameEvent();
+        private final long start = System.nanoTime();
+
+        private FrameTiming() {
+            event.begin();
+        }
+
+        void finish(int width, int height, long pixelsRedrawn, double zoom) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.width = width;
+                event.height = height;
+                event.pixelsRedrawn = pixelsRedrawn;
+                event.zoom = zoom;
+                event.commit();
+            }
+            histograms.get(FRAME).record(nanos);
+        }
+    }
+
+    static Timing start(String kind, String name, Object parameters) {
+        return new Timing(kind, name, parameters);
+    }
+
+    static FrameTiming startFrame() {
+        return new FrameTiming();
+    }
+
+    // Lambdas (like Clear) have no useful toString; the operation classes describe their settings.
+    private static String describe(Object parameters) {
+        return parameters == null || parameters.getClass().isSynthetic() ? "" : parameters.toString();
+    }
+
+    // What the canvas overlay shows, one line each.
+    static String[] overlayLines() {
+        LatencyHistogram frames = histograms.get(FRAME);
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        return new String[]{
+                String.format(Locale.ROOT, "Frame %.1f ms (p50 %.1f, p99 %.1f)", frames.getLastMillis(),
+                        frames.getP50Millis(), frames.getP99Millis()),
+                "Last " + lastOperation,
+                String.format(Locale.ROOT, "GC %d ms in %d collections", collectionMillis, collections)
+        };
+    }
+}
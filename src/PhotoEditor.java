@@ -1,450 +1,1409 @@
-// Written by Peter. I talked with Seth on this project.
-
-import javax.imageio.ImageIO;
-import javax.swing.*;
-import javax.swing.border.TitledBorder;
-import java.awt.*;
-import java.awt.event.*;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
-import java.util.Hashtable;
-
-public class PhotoEditor {
-    private BufferedImage currentImage;
-    private JFrame myJFrame;
-    private JPanel myJPanel;
-    private JSlider penSizeSlider;
-    private PhotoCanvas myPhotoCanvas;
-    private boolean scribbleToggle = false;
-    private Color filterColor = Color.WHITE;
-    private Color penColor = Color.BLACK;
-    private double sumofRed;
-    private double sumofGreen;
-    private double sumofBlue;
-    private int newRed;
-    private int newGreen;
-    private int newBlue;
-
-    public static void main(String[] args) {
-        new PhotoEditor();
-    }
-
-    PhotoEditor() {
-        try {
-            UIManager.setLookAndFeel(
-                    UIManager.getSystemLookAndFeelClassName());
-        } catch (UnsupportedLookAndFeelException | ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-        }
-        myJPanel = new JPanel();
-        myJPanel.setLayout(new BorderLayout());
-        penSizeSlider = new JSlider(1, 100);
-
-        penSizeSlider.setBorder(new TitledBorder("Pen Size"));
-        penSizeSlider.setPaintTicks(true);
-        penSizeSlider.setPaintLabels(true);
-        Hashtable labelsOnSlider = new Hashtable();
-        labelsOnSlider.put(5, new JLabel("1"));
-        labelsOnSlider.put(95, new JLabel("100"));
-        penSizeSlider.setLabelTable(labelsOnSlider);
-        penSizeSlider.setVisible(false);
-
-        JMenuBar menuBar = new JMenuBar();
-        JMenu file = new JMenu("File");
-        JMenu draw = new JMenu("Draw");
-        JMenu filter = new JMenu("Filter");
-
-        file.add(new ImageSave());
-        file.add(new ImageOpen());
-        file.add(new ImageClear());
-
-        filter.add(new GreyscaleFilter());
-        filter.add(new ColorFilter());
-        filter.add(new FilterColorPicker());
-        filter.add(new PixelateFilter());
-        filter.add(new GaussianBlur());
-        filter.add(new SharpenFilter());
-
-        draw.add(new ScribbleOn());
-
-        menuBar.add(file);
-        menuBar.add(draw);
-        menuBar.add(filter);
-
-        myPhotoCanvas = new PhotoCanvas(500, 500);
-        myJPanel.add(myPhotoCanvas, BorderLayout.CENTER);
-        myJPanel.add(penSizeSlider, BorderLayout.SOUTH);
-
-        myJFrame = new JFrame("PhotoEditor");
-        myJFrame.add(myJPanel);
-        myJFrame.setJMenuBar(menuBar);
-        myJFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-        // So the Photocanvas is blank and drawable when first created.
-        currentImage = new BufferedImage(500, 500, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = currentImage.createGraphics();
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, currentImage.getWidth(), currentImage.getHeight());
-
-        myJFrame.pack();
-
-        myJFrame.setLocationRelativeTo(null);
-        myJFrame.setVisible(true);
-
-    }
-
-
-    class PhotoCanvas extends ImageCanvas implements MouseMotionListener, MouseListener {
-        private double scale = 1;
-        private double heightRatio = 1;
-        private double widthRatio = 1;
-        double recentX;
-        double recentY;
-
-        public PhotoCanvas(int width, int height) {
-            super(width, height);
-            addMouseListener(this);
-            addMouseMotionListener(this);
-        }
-
-        public void draw() {
-            Graphics2D pen = myPhotoCanvas.getPen();
-            pen.drawImage(currentImage, 0, 0, (int) (currentImage.getWidth() * scale), (int) (currentImage.getHeight() * scale), myPhotoCanvas);
-            myPhotoCanvas.display();
-            pen.dispose();
-        }
-
-        public void resized() {
-            double currentImageHeight = currentImage.getHeight();
-            double currentImageWidth = currentImage.getWidth();
-            heightRatio = myPhotoCanvas.getHeight() / currentImageHeight;
-            widthRatio = myPhotoCanvas.getWidth() / currentImageWidth;
-            scale = Math.min(heightRatio, widthRatio);
-            draw();
-        }
-
-        @Override
-        public void mouseClicked(MouseEvent e) {
-        }
-
-        @Override
-        public void mousePressed(MouseEvent e) {
-            if (scribbleToggle) {
-                if (e.getX() < myPhotoCanvas.getWidth() && e.getY() < myPhotoCanvas.getHeight() && currentImage != null) {
-                    Graphics2D pen = (Graphics2D) currentImage.getGraphics();
-                    pen.setColor(penColor);
-                    pen.setStroke(new BasicStroke(penSizeSlider.getValue() / 5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                    recentX = e.getX();
-                    recentY = e.getY();
-                    pen.drawLine((int) (recentX / scale), (int) (recentY / scale), (int) (e.getX() / scale), (int) (e.getY() / scale));
-                    pen.dispose();
-                    myPhotoCanvas.draw();
-                }
-            }
-        }
-
-        @Override
-        public void mouseReleased(MouseEvent e) {}
-
-        @Override
-        public void mouseEntered(MouseEvent e) {}
-
-        @Override
-        public void mouseExited(MouseEvent e) {}
-
-        @Override
-        public void mouseDragged(MouseEvent e) {
-            if (scribbleToggle) {
-                if (e.getX() < myPhotoCanvas.getWidth() && e.getY() < myPhotoCanvas.getHeight() && e.getX() >= 0 && e.getY() >= 0 && currentImage != null) {
-                    Graphics2D pen = (Graphics2D) currentImage.getGraphics();
-                    pen.setColor(penColor);
-                    pen.setStroke(new BasicStroke(penSizeSlider.getValue() / 5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                    pen.drawLine((int) (recentX / scale), (int) (recentY / scale), (int) (e.getX() / scale), (int) (e.getY() / scale));
-                    recentX = e.getX();
-                    recentY = e.getY();
-                    pen.dispose();
-                    myPhotoCanvas.draw();
-                }
-            }
-        }
-
-        @Override
-        public void mouseMoved(MouseEvent e) {
-
-        }
-    }
-
-    class ScribbleOn extends JMenuItem implements ActionListener {
-
-        ScribbleOn() {
-            super("Scribble");
-            addActionListener(this);
-        }
-
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            scribbleToggle = !scribbleToggle;
-            if (scribbleToggle) {
-                penSizeSlider.setVisible(true);
-                penColor = JColorChooser.showDialog(myPhotoCanvas,
-                        "Choose Pen Color", penColor);
-                if (penColor == null) {
-                    penColor = Color.BLACK;
-                }
-            }
-        }
-    }
-
-    class ImageOpen extends JMenuItem implements ActionListener {
-        ImageOpen() {
-            super("Open");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            JFileChooser myJFileChooser = new JFileChooser();
-            int state = myJFileChooser.showOpenDialog(myJFrame);
-            if (state == JFileChooser.APPROVE_OPTION) {
-                try {
-                    currentImage = ImageIO.read(myJFileChooser.getSelectedFile());
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
-            }
-            myPhotoCanvas.resized();
-            myPhotoCanvas.draw();
-        }
-    }
-
-    class ImageSave extends JMenuItem implements ActionListener {
-        ImageSave() {
-            super("Save");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            JFileChooser myJFileChooser = new JFileChooser();
-            int state = myJFileChooser.showSaveDialog(myJFrame);
-            if (state == JFileChooser.APPROVE_OPTION) {
-                try {
-                    ImageIO.write(currentImage, "png", myJFileChooser.getSelectedFile());
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
-            }
-        }
-    }
-
-    class ImageClear extends JMenuItem implements ActionListener {
-        ImageClear() {
-            super("Clear");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            Graphics2D graphics = currentImage.createGraphics();
-            graphics.setColor(Color.WHITE);
-            graphics.fillRect(0, 0, currentImage.getWidth(), currentImage.getHeight());
-            myPhotoCanvas.draw();
-        }
-    }
-
-    class GreyscaleFilter extends JMenuItem implements ActionListener {
-        GreyscaleFilter() {
-            super("Greyscale");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            applyFilter((r, g, b) -> new Color((int) (0.3 * r + 0.59 * g + 0.11 * b), (int) (0.3 * r + 0.59 * g + 0.11 * b), (int) (0.3 * r + 0.59 * g + 0.11 * b)));
-        }
-    }
-
-    class ColorFilter extends JMenuItem implements ActionListener {
-        ColorFilter() {
-            super("ColorFilter");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            applyFilter((r, g, b) ->
-                    new Color(r > filterColor.getRed() ? Math.max(r - 20, filterColor.getRed()) : Math.min(r + 20, filterColor.getRed()),
-                            g > filterColor.getGreen() ? Math.max(g - 20, filterColor.getGreen()) : Math.min(g + 20, filterColor.getGreen()),
-                            b > filterColor.getBlue() ? Math.max(b - 20, filterColor.getBlue()) : Math.min(b + 20, filterColor.getBlue())));
-        }
-    }
-
-    class FilterColorPicker extends JMenuItem implements ActionListener {
-        FilterColorPicker() {
-            super("Pick Color For Filter");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            filterColor = JColorChooser.showDialog(myPhotoCanvas,
-                    "Choose Filter Color", filterColor);
-            if (filterColor == null) {
-                filterColor = Color.WHITE;
-            }
-        }
-    }
-
-
-    class PixelateFilter extends JMenuItem implements ActionListener {
-        PixelateFilter() {
-            super("Pixelate");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            if (currentImage != null) {
-                for (int x = 0; x < currentImage.getWidth(); x = x + 12) {
-                    for (int y = 0; y < currentImage.getHeight(); y = y + 12) {
-                        sumofRed = 0;
-                        sumofGreen = 0;
-                        sumofBlue = 0;
-                        int numberOfPixelsInGrid = 0;
-                        for (int a = x; a < x + 12 && a < currentImage.getWidth(); a++) {
-                            for (int b = y; b < y + 12 && b < currentImage.getHeight(); b++) {
-                                Color pixelColor = new Color(currentImage.getRGB(x, y));
-                                sumofRed += pixelColor.getRed();
-                                sumofGreen += pixelColor.getGreen();
-                                sumofBlue += pixelColor.getBlue();
-                                numberOfPixelsInGrid++;
-                            }
-                        }
-                        newRed = (int) sumofRed / numberOfPixelsInGrid;
-                        newGreen = (int) sumofGreen / numberOfPixelsInGrid;
-                        newBlue = (int) sumofBlue / numberOfPixelsInGrid;
-                        int pixelatedColor = new Color(newRed, newGreen, newBlue).getRGB();
-                        for (int a = x; a < x + 12 && a < currentImage.getWidth(); a++) {
-                            for (int b = y; b < y + 12 && b < currentImage.getHeight(); b++) {
-                                currentImage.setRGB(a, b, pixelatedColor);
-                            }
-                        }
-                    }
-                }
-                myPhotoCanvas.draw();
-            }
-        }
-    }
-
-    // Kind of hard to tell if the image is actually sharpened so I'm not sure if this totally works on not. Seems like it just makes the photo a bit lighter.
-    class SharpenFilter extends JMenuItem implements ActionListener {
-        SharpenFilter() {
-            super("Sharpen Image");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            if (currentImage != null) {
-                BufferedImage copyImage = currentImage;
-                for (int x = 0; x < currentImage.getWidth(); x++) {
-                    for (int y = 0; y < currentImage.getHeight(); y++) {
-                        sumofRed = 0;
-                        sumofGreen = 0;
-                        sumofBlue = 0;
-                        int numberOfPixelsInGrid = (Math.min(x + 1, currentImage.getWidth())-Math.max(x - 1, 0)+1)*(Math.min(y + 1, currentImage.getHeight())-Math.max(y - 1, 0)+1);
-                        for (int a = Math.max(x - 1, 0); a <= Math.min(x + 1, currentImage.getWidth()); a++) {
-                            for (int b = Math.max(y - 1, 0); b <= Math.min(y + 1, currentImage.getHeight()); b++) {
-                                Color pixelColor = new Color(currentImage.getRGB(x, y));
-                                if (a != x && b != y) {
-                                    sumofRed += -pixelColor.getRed() / (double) (numberOfPixelsInGrid-1);
-                                    sumofGreen += -pixelColor.getGreen() / (double) ((numberOfPixelsInGrid-1));
-                                    sumofBlue += -pixelColor.getBlue() / (double) ((numberOfPixelsInGrid-1));
-                                } else {
-                                    sumofRed += 2 * pixelColor.getRed();
-                                    sumofGreen += 2 * pixelColor.getGreen();
-                                    sumofBlue += 2 * pixelColor.getBlue();
-                                }
-                            }
-                        }
-                        // This ensures we don't get negative RGB values.
-                        newRed = Math.min((int) (sumofRed / numberOfPixelsInGrid), 255);
-                        newGreen = Math.min((int) (sumofGreen / numberOfPixelsInGrid), 255);
-                        newBlue = Math.min((int) (sumofBlue / numberOfPixelsInGrid), 255);
-                        newRed = Math.max(newRed, 0);
-                        newGreen = Math.max(newGreen, 0);
-                        newBlue = Math.max(newBlue, 0);
-                        int pixelatedColor = new Color(newRed, newGreen, newBlue).getRGB();
-                        copyImage.setRGB(x, y, pixelatedColor);
-                    }
-                }
-                currentImage = copyImage;
-                myPhotoCanvas.draw();
-            }
-        }
-    }
-
-    class GaussianBlur extends JMenuItem implements ActionListener {
-        GaussianBlur() {
-            super("Gaussian Blur");
-            addActionListener(this);
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            if (currentImage != null) {
-                int standardDeviation = 3;
-                BufferedImage currentImageCopy = currentImage;
-                double[] kernel = new double[1 + 6 * standardDeviation];
-                for (int x = 0; x < 1 + 6 * standardDeviation; x++) {
-                    kernel[x] = calculateGaussianFunction(standardDeviation, x - 3 * standardDeviation);
-                }
-
-                double sumOfKernalValuesUsed;
-                for (int x = 0; x < currentImage.getWidth(); x++) {
-                    for (int y = 0; y < currentImage.getHeight(); y++) {
-                        sumofRed = 0;
-                        sumofGreen = 0;
-                        sumofBlue = 0;
-                        sumOfKernalValuesUsed = 0;
-                        for (int a = Math.max((x - 3 * standardDeviation), 0); a < Math.min(x + 3 * standardDeviation, currentImage.getWidth() - 1); a++) {
-                            // I use the Max to make sure that the pixels to the left do not fall off the screen. I use Min to make sure they don't use pixels to far right.
-                            Color pixelColor = new Color(currentImage.getRGB(a, y));
-                            sumOfKernalValuesUsed += kernel[a - x + 3 * standardDeviation];
-                            sumofRed = sumofRed + pixelColor.getRed() * kernel[a - x + 3 * standardDeviation];
-                            sumofGreen = sumofGreen + pixelColor.getGreen() * kernel[a - x + 3 * standardDeviation];
-                            sumofBlue = sumofBlue + pixelColor.getBlue() * kernel[a - x + 3 * standardDeviation];
-                        }
-
-                        currentImageCopy.setRGB(x, y, new Color((int) (sumofRed / sumOfKernalValuesUsed), (int) (sumofGreen / sumOfKernalValuesUsed), (int) (sumofBlue / sumOfKernalValuesUsed)).getRGB());
-                    }
-                }
-                for (int x = 0; x < currentImage.getWidth(); x++) {
-                    for (int y = 0; y < currentImage.getHeight(); y++) {
-                        sumOfKernalValuesUsed = 0;
-                        sumofRed = 0;
-                        sumofGreen = 0;
-                        sumofBlue = 0;
-                        for (int b = Math.max((y - 3 * standardDeviation), 0); b < Math.min(y + 3 * standardDeviation, currentImage.getHeight() - 1); b++) {
-                            Color pixelColor = new Color(currentImageCopy.getRGB(x, b));
-                            sumOfKernalValuesUsed += kernel[b - y + 3 * standardDeviation];
-                            sumofRed = sumofRed + pixelColor.getRed() * kernel[b - y + 3 * standardDeviation];
-                            sumofGreen = sumofGreen + pixelColor.getGreen() * kernel[b - y + 3 * standardDeviation];
-                            sumofBlue = sumofBlue + pixelColor.getBlue() * kernel[b - y + 3 * standardDeviation];
-                        }
-                        currentImageCopy.setRGB(x, y, new Color((int) (sumofRed / sumOfKernalValuesUsed), (int) (sumofGreen / sumOfKernalValuesUsed), (int) (sumofBlue / sumOfKernalValuesUsed)).getRGB());
-                    }
-                }
-                currentImage = currentImageCopy;
-                myPhotoCanvas.draw();
-            }
-        }
-
-        private double calculateGaussianFunction(double standardDevation, int distanceFromOrigin) {
-            return 1 / (Math.sqrt(2 * Math.PI * standardDevation * standardDevation)) * Math.exp(-distanceFromOrigin * distanceFromOrigin / (2 * standardDevation * standardDevation));
-        }
-    }
-
-    private void applyFilter(ColorTransformer transformer) {
-        if (currentImage != null) {
-            for (int x = 0; x < currentImage.getWidth(); x++) {
-                for (int y = 0; y < currentImage.getHeight(); y++) {
-                    Color currentColor = new Color(currentImage.getRGB(x, y));
-                    Color newColor = transformer.transformColor(currentColor.getRed(), currentColor.getGreen(), currentColor.getBlue());
-                    currentImage.setRGB(x, y, newColor.getRGB());
-                }
-            }
-            myPhotoCanvas.draw();
-        }
-    }
-}
\ No newline at end of file
+// Written by Peter. I talked with Seth on this project.
+
+import javax.swing.*;
+import javax.swing.border.TitledBorder;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.DoubleFunction;
+import java.util.function.Function;
+
+public class PhotoEditor {
+    private BufferedImage currentImage;
+    private JFrame myJFrame;
+    private JPanel myJPanel;
+    private JSlider penSizeSlider;
+    private PhotoCanvas myPhotoCanvas;
+    private boolean scribbleToggle = false;
+    private Color filterColor = Color.WHITE;
+    private Color penColor = Color.BLACK;
+    private final JobScheduler jobScheduler = new JobScheduler();
+    private JPanel jobPanel;
+    private JLabel jobLabel;
+    private JProgressBar jobProgressBar;
+    private final FilterPipeline pendingFilters = new FilterPipeline();
+    private JCheckBoxMenuItem deferFilters;
+    private JCheckBoxMenuItem showStats;
+    private JCheckBoxMenuItem showBefore;
+    private final FilterCache filterCache = new FilterCache();
+    // What the last filter started from, for flipping between before and after. Null once anything else changes the image.
+    private BufferedImage beforeImage;
+    // Always up to date with currentImage; edits re-count just the tiles they changed. Null after opening a project
+    // until something needs it, since counting it would decode every tile.
+    private ImageHistogram histogram;
+    private HistogramPanel histogramPanel;
+    private JCheckBoxMenuItem showHistogram;
+    private final UndoHistory history = UndoHistory.fromSystemProperties();
+    private UndoHistory.Stroke currentStroke;
+    // The project file last opened or saved, so saving to it again only appends what changed.
+    private ProjectFile project;
+    // Filters only touch the selected part of the image, when there is a selection.
+    private Selection selection;
+    // What dragging on the canvas selects with; null when it scribbles or pans instead.
+    private SelectMode selectMode;
+
+    private enum SelectMode { RECTANGLE, LASSO, BRUSH }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchProcessor.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        new PhotoEditor();
+    }
+
+    PhotoEditor() {
+        try {
+            UIManager.setLookAndFeel(
+                    UIManager.getSystemLookAndFeelClassName());
+        } catch (UnsupportedLookAndFeelException | ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+        }
+        myJPanel = new JPanel();
+        myJPanel.setLayout(new BorderLayout());
+        penSizeSlider = new JSlider(1, 100);
+
+        penSizeSlider.setBorder(new TitledBorder("Pen Size"));
+        penSizeSlider.setPaintTicks(true);
+        penSizeSlider.setPaintLabels(true);
+        Hashtable labelsOnSlider = new Hashtable();
+        labelsOnSlider.put(5, new JLabel("1"));
+        labelsOnSlider.put(95, new JLabel("100"));
+        penSizeSlider.setLabelTable(labelsOnSlider);
+        penSizeSlider.setVisible(false);
+
+        JMenuBar menuBar = new JMenuBar();
+        JMenu file = new JMenu("File");
+        JMenu draw = new JMenu("Draw");
+        JMenu filter = new JMenu("Filter");
+        JMenu edit = new JMenu("Edit");
+        JMenu view = new JMenu("View");
+        JMenu select = new JMenu("Select");
+
+        file.add(new ImageSave());
+        file.add(new ImageOpen());
+        file.add(new ImageClear());
+
+        filter.add(new GreyscaleFilter());
+        filter.add(new ColorFilter());
+        filter.add(new FilterColorPicker());
+        filter.add(new PixelateFilter());
+        filter.add(new GaussianBlur());
+        filter.add(new SharpenFilter());
+        filter.add(new KernelFilter());
+        filter.add(new LutFilter());
+        filter.addSeparator();
+        filter.add(new AutoLevels());
+        filter.add(new AutoContrast());
+        filter.add(new AutoWhiteBalance());
+        filter.addSeparator();
+        deferFilters = new JCheckBoxMenuItem("Defer Filters");
+        deferFilters.addActionListener(e -> {
+            if (!deferFilters.isSelected()) {
+                applyPendingFilters();
+            }
+        });
+        filter.add(deferFilters);
+        filter.add(new ApplyPendingFilters());
+        filter.add(new ParallelismPicker());
+
+        draw.add(new ScribbleOn());
+
+        select.add(new SelectTool("Rectangle", SelectMode.RECTANGLE));
+        select.add(new SelectTool("Lasso", SelectMode.LASSO));
+        select.add(new SelectTool("Brush", SelectMode.BRUSH));
+        select.addSeparator();
+        select.add(new SelectNone());
+
+        edit.add(new UndoEdit());
+        edit.add(new RedoEdit());
+
+        view.add(new ZoomIn());
+        view.add(new ZoomOut());
+        view.add(new ActualSize());
+        view.add(new FitToWindow());
+        view.addSeparator();
+        showBefore = new JCheckBoxMenuItem("Show Before Last Filter");
+        showBefore.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_B, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+        showBefore.addActionListener(e -> {
+            if (beforeImage == null) {
+                showBefore.setSelected(false);
+            }
+            myPhotoCanvas.showImage();
+        });
+        view.add(showBefore);
+        showHistogram = new JCheckBoxMenuItem("Show Histogram");
+        showHistogram.addActionListener(e -> {
+            histogramPanel.setVisible(showHistogram.isSelected());
+            myJPanel.revalidate();
+            if (showHistogram.isSelected() && histogram == null) {
+                countHistogram();
+            }
+        });
+        view.add(showHistogram);
+        showStats = new JCheckBoxMenuItem("Show Performance Stats");
+        showStats.addActionListener(e -> myPhotoCanvas.refresh());
+        view.add(showStats);
+
+        menuBar.add(file);
+        menuBar.add(edit);
+        menuBar.add(view);
+        menuBar.add(draw);
+        menuBar.add(select);
+        menuBar.add(filter);
+
+        myPhotoCanvas = new PhotoCanvas(500, 500);
+        myJPanel.add(myPhotoCanvas, BorderLayout.CENTER);
+        myJPanel.add(penSizeSlider, BorderLayout.SOUTH);
+        myJPanel.add(createJobPanel(), BorderLayout.NORTH);
+        histogramPanel = new HistogramPanel();
+        histogramPanel.setVisible(false);
+        myJPanel.add(histogramPanel, BorderLayout.EAST);
+
+        myJFrame = new JFrame("PhotoEditor");
+        myJFrame.add(myJPanel);
+        myJFrame.setJMenuBar(menuBar);
+        myJFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        // So the Photocanvas is blank and drawable when first created.
+        currentImage = new BufferedImage(500, 500, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = currentImage.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, currentImage.getWidth(), currentImage.getHeight());
+        setHistogram(ImageHistogram.of(currentImage));
+
+        myJFrame.pack();
+
+        myJFrame.setLocationRelativeTo(null);
+        myJFrame.setVisible(true);
+
+    }
+
+    // A progress bar and Cancel button that only show while a background job is running.
+    private JPanel createJobPanel() {
+        jobPanel = new JPanel(new BorderLayout(5, 0));
+        jobLabel = new JLabel();
+        jobProgressBar = new JProgressBar(0, 1000);
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> jobScheduler.cancelAll());
+        jobPanel.add(jobLabel, BorderLayout.WEST);
+        jobPanel.add(jobProgressBar, BorderLayout.CENTER);
+        jobPanel.add(cancelButton, BorderLayout.EAST);
+        jobPanel.setVisible(false);
+        // Polling keeps the worker threads from having to post an event for every tile they finish.
+        new javax.swing.Timer(100, e -> {
+            JobProgress running = jobScheduler.getRunning();
+            boolean busy = jobScheduler.isBusy();
+            if (running != null) {
+                jobLabel.setText(jobScheduler.getRunningName());
+                jobProgressBar.setValue((int) (running.fraction() * 1000));
+            }
+            if (jobPanel.isVisible() != busy) {
+                jobPanel.setVisible(busy);
+                myJPanel.revalidate();
+            }
+        }).start();
+        return jobPanel;
+    }
+
+    // With Defer Filters on, the operation just joins the pending pipeline; otherwise it runs straight away.
+    // Either way it is limited to the selection there is now.
+    private void runFilter(String name, ImageOperation operation) {
+        if (selection != null) {
+            operation = new SelectionOperation(operation, selection);
+        }
+        if (currentImage != null && deferFilters.isSelected()) {
+            pendingFilters.add(name, operation);
+            updateTitle();
+        } else {
+            submitFilter(name, operation);
+        }
+    }
+
+    // Runs the operation in the background on whatever the image is when the job starts (so queued filters stack),
+    // and only swaps in the result once it has finished.
+    private void submitFilter(String name, ImageOperation operation) {
+        if (currentImage != null) {
+            jobScheduler.submit(name, progress -> {
+                BufferedImage source = JobScheduler.onEventThread(() -> currentImage);
+                ImageHistogram counted = JobScheduler.onEventThread(() -> histogram);
+                PerformanceMonitor.Timing timing = PerformanceMonitor.start(PerformanceMonitor.FILTER, name, operation);
+                // The same filter on the same pixels as a little while ago comes straight out of the cache.
+                FilterCache.Key key = FilterCache.key(source, operation);
+                BufferedImage result = key == null ? null : filterCache.get(key);
+                if (result == null) {
+                    result = operation.apply(source, progress);
+                    filterCache.put(key, result);
+                }
+                timing.finish(source);
+                // Diffing here, on the worker, keeps the EDT free while the result is still in cache.
+                Rectangle changed = operation.changedArea(source.getWidth(), source.getHeight());
+                UndoHistory.Edit edit = UndoHistory.diff(name, source, result, changed);
+                // Only the tiles the diff found changed get counted again.
+                return new FilterResult(source, result, edit, counted == null ? null : counted.measure(result, edit.changedAreas()));
+            }, filtered -> {
+                forgetBefore();
+                beforeImage = filtered.source;
+                currentImage = filtered.image;
+                if (filtered.counts != null) {
+                    setHistogram(histogram.apply(filtered.counts));
+                }
+                history.push(filtered.edit);
+                myPhotoCanvas.drawReplaced(filtered.source, filtered.edit.changedAreas());
+            });
+        }
+    }
+
+
+    class PhotoCanvas extends ImageCanvas implements MouseMotionListener, MouseListener, MouseWheelListener {
+        private final CanvasView view = new CanvasView();
+        double recentX;
+        double recentY;
+        private boolean panning;
+        // Set while the button that started a stroke is held and the stroke waits for pending filters to finish.
+        private boolean strokeWaiting;
+        private int panX;
+        private int panY;
+        // While a selection is being dragged out: where it started (in image coordinates), the path so far and
+        // the shape it makes.
+        private boolean selecting;
+        private double selectX;
+        private double selectY;
+        private Path2D selectPath;
+        private BasicStroke selectBrush;
+        private Shape selectShape;
+
+        public PhotoCanvas(int width, int height) {
+            super(width, height);
+            addMouseListener(this);
+            addMouseMotionListener(this);
+            addMouseWheelListener(this);
+        }
+
+        public void draw() {
+            view.setImage(shownImage());
+            view.imageChanged();
+            present(true);
+        }
+
+        // Repaints just the part of the screen showing this area of the image (in image coordinates).
+        public void drawArea(Rectangle imageArea) {
+            view.setImage(shownImage());
+            view.invalidate(imageArea);
+            present(false);
+        }
+
+        public void drawAreas(List<Rectangle> imageAreas) {
+            view.setImage(shownImage());
+            view.invalidate(imageAreas);
+            present(false);
+        }
+
+        // Shows a filter's result in place of source, redrawing only the areas the filter changed. The tiles of the
+        // view's pyramid elsewhere are still good, so they carry over to the result's.
+        public void drawReplaced(BufferedImage source, List<Rectangle> changedAreas) {
+            view.replaceImage(source, shownImage(), changedAreas);
+            present(false);
+        }
+
+        // Switches between the current image and the one before the last filter. The view keeps the pyramid of the
+        // image it showed last, so flipping back and forth doesn't rebuild anything.
+        public void showImage() {
+            view.setImage(shownImage());
+            present(true);
+        }
+
+        // Repaints everything from the cached view, for when only what goes on top of the image has changed.
+        public void refresh() {
+            present(true);
+        }
+
+        public void fitToWindow() {
+            view.setImage(shownImage());
+            view.fitToWindow();
+            present(true);
+        }
+
+        // Zooms about the middle of the canvas; 1 / zoom gets back to one image pixel per screen pixel.
+        public void zoom(double factor) {
+            view.setImage(shownImage());
+            view.zoomAtCentre(factor);
+            present(true);
+        }
+
+        public double getZoom() {
+            return view.getZoom();
+        }
+
+        // The view's pyramid of the current image, so a preview can start from tiles already built for the screen.
+        public ImagePyramid getPyramid() {
+            return view.pyramidFor(currentImage);
+        }
+
+        // Hands the pyramid of the image just opened a stored copy of one of its levels (a project's overview), so a
+        // zoomed out view doesn't have to read every pixel of the image first.
+        public void seedPyramid(BufferedImage levelImage) {
+            view.setImage(shownImage());
+            view.pyramidFor(shownImage()).seed(levelImage);
+        }
+
+        public boolean isFitting() {
+            return view.isFitting();
+        }
+
+        // The image point in the middle of the canvas.
+        public Point2D getCentre() {
+            return new Point2D.Double(view.toImageX(getWidth() / 2.0), view.toImageY(getHeight() / 2.0));
+        }
+
+        // Zooms to zoom with image point (x, y) in the middle, the way a project was left.
+        public void showAt(double zoom, double x, double y) {
+            view.setImage(shownImage());
+            view.setSize(getWidth(), getHeight());
+            view.centreOn(zoom, x, y);
+            present(true);
+        }
+
+        private void present(boolean everything) {
+            BufferStrategy strategy = getBufferStrategy();
+            if (strategy == null) {
+                return;
+            }
+            PerformanceMonitor.FrameTiming timing = PerformanceMonitor.startFrame();
+            long pixels = 0;
+            view.setSize(getWidth(), getHeight());
+            // After a flip the back buffer holds an older frame, so only a blitting strategy can be patched in place.
+            boolean whole = everything || strategy.getCapabilities().isPageFlipping();
+            do {
+                do {
+                    Rectangle changed = view.validate(getGraphicsConfiguration());
+                    if (changed != null && changed.width == getWidth() && changed.height == getHeight()) {
+                        whole = true;
+                    }
+                    if (changed != null) {
+                        pixels += (long) changed.width * changed.height;
+                    }
+                    Graphics2D pen = getPen();
+                    if (whole) {
+                        view.paint(pen, null);
+                    } else if (changed != null) {
+                        view.paint(pen, changed);
+                    }
+                    Shape outline = selecting ? selectShape : selection == null ? null : selection.getShape();
+                    if (outline != null) {
+                        paintOutline(pen, outline);
+                    }
+                    if (showStats.isSelected()) {
+                        paintStats(pen);
+                    }
+                    pen.dispose();
+                    // If anything got lost on the way, go round again and repaint all of it.
+                    whole = true;
+                } while (strategy.contentsRestored() || view.contentsLost());
+                display();
+            } while (strategy.contentsLost());
+            timing.finish(getWidth(), getHeight(), pixels, view.getZoom());
+        }
+
+        // Black and white dashes, so the outline shows up on any image. Drawn on every frame, like the stats.
+        private void paintOutline(Graphics2D pen, Shape outline) {
+            Shape onScreen = view.imageToScreen().createTransformedShape(outline);
+            pen.setColor(Color.BLACK);
+            pen.draw(onScreen);
+            pen.setColor(Color.WHITE);
+            pen.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{4, 4}, 0));
+            pen.draw(onScreen);
+            pen.setStroke(new BasicStroke());
+        }
+
+        // What the drag so far selects, if it ends at image position (x, y).
+        private Shape selectionShape(double x, double y) {
+            switch (selectMode) {
+                case RECTANGLE:
+                    return new Rectangle2D.Double(Math.min(selectX, x), Math.min(selectY, y), Math.abs(x - selectX), Math.abs(y - selectY));
+                case LASSO:
+                    Path2D closed = new Path2D.Double(selectPath);
+                    closed.closePath();
+                    return closed;
+                default:
+                    return selectBrush.createStrokedShape(selectPath);
+            }
+        }
+
+        // Numbers for slowness reports, in a box in the corner. Repainted on every frame, over whatever is there.
+        private void paintStats(Graphics2D pen) {
+            String[] lines = PerformanceMonitor.overlayLines();
+            FontMetrics metrics = pen.getFontMetrics();
+            int lineHeight = metrics.getHeight();
+            int boxWidth = 0;
+            for (String line : lines) {
+                boxWidth = Math.max(boxWidth, metrics.stringWidth(line));
+            }
+            Rectangle box = new Rectangle(4, 4, boxWidth + 12, lines.length * lineHeight + 8);
+            view.paint(pen, box.intersection(new Rectangle(0, 0, getWidth(), getHeight())));
+            pen.setColor(new Color(0, 0, 0, 180));
+            pen.fillRect(box.x, box.y, box.width, box.height);
+            pen.setColor(Color.WHITE);
+            for (int i = 0; i < lines.length; i++) {
+                pen.drawString(lines[i], 10, 8 + i * lineHeight + metrics.getAscent());
+            }
+        }
+
+        public void resized() {
+            if (currentImage == null) {
+                return;
+            }
+            view.setImage(shownImage());
+            // present() picks up the new size: still fitting the window if it was, otherwise the same zoom.
+            present(true);
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e) {
+        }
+
+        @Override
+        public void mousePressed(MouseEvent e) {
+            if (selectMode != null && SwingUtilities.isLeftMouseButton(e) && currentImage != null) {
+                selecting = true;
+                selectX = view.toImageX(e.getX());
+                selectY = view.toImageY(e.getY());
+                selectPath = new Path2D.Double();
+                selectPath.moveTo(selectX, selectY);
+                // The brush is as wide on screen as the pen size, whatever the zoom.
+                selectBrush = new BasicStroke((float) (penSizeSlider.getValue() / view.getZoom()), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+                selectShape = selectionShape(selectX, selectY);
+                return;
+            }
+            // With Scribble off, or with the middle button, dragging pans the image.
+            if (!scribbleToggle || SwingUtilities.isMiddleMouseButton(e)) {
+                panning = true;
+                panX = e.getX();
+                panY = e.getY();
+                return;
+            }
+            if (!pendingFilters.isEmpty()) {
+                // Strokes go on top of the filtered image, so pending filters have to run first. The stroke starts
+                // where the button went down once they are done; if the button was let go meanwhile, it's just a dot.
+                applyPendingFilters();
+                strokeWaiting = true;
+                jobScheduler.submit("Starting stroke", progress -> e, pressed -> {
+                    beginStroke(pressed);
+                    if (!strokeWaiting) {
+                        finishStroke();
+                    }
+                    strokeWaiting = false;
+                });
+                return;
+            }
+            // Jobs read currentImage from another thread, so no drawing on it until they are done.
+            if (!jobScheduler.isBusy()) {
+                beginStroke(e);
+            }
+        }
+
+        private void beginStroke(MouseEvent e) {
+            // The stroke goes on the current image, so that had better be what's on screen.
+            boolean wasShowingBefore = showBefore.isSelected();
+            forgetBefore();
+            if (wasShowingBefore) {
+                showImage();
+            }
+            if (e.getX() < myPhotoCanvas.getWidth() && e.getY() < myPhotoCanvas.getHeight() && currentImage != null) {
+                currentStroke = UndoHistory.beginStroke("Scribble", currentImage);
+                currentImage = currentStroke.getImage();
+                Graphics2D pen = (Graphics2D) currentImage.getGraphics();
+                pen.setColor(penColor);
+                BasicStroke stroke = new BasicStroke(penSizeSlider.getValue() / 5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+                pen.setStroke(stroke);
+                recentX = e.getX();
+                recentY = e.getY();
+                int x = (int) view.toImageX(e.getX());
+                int y = (int) view.toImageY(e.getY());
+                Rectangle segment = segmentBounds(x, y, x, y, stroke.getLineWidth());
+                currentStroke.touch(segment);
+                pen.drawLine(x, y, x, y);
+                pen.dispose();
+                imageChangedInPlace();
+                updateHistogram(List.of(segment));
+                myPhotoCanvas.drawArea(segment);
+            }
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            panning = false;
+            strokeWaiting = false;
+            if (selecting) {
+                selecting = false;
+                // A click without a drag selects nothing, which is how a rectangle or lasso selection is dropped.
+                selection = Selection.of(extendSelection(e), currentImage.getWidth(), currentImage.getHeight());
+                selectPath = null;
+                selectShape = null;
+                refresh();
+                return;
+            }
+            finishStroke();
+        }
+
+        private void finishStroke() {
+            if (currentStroke != null) {
+                history.push(currentStroke.finish());
+                currentStroke = null;
+            }
+        }
+
+        @Override
+        public void mouseEntered(MouseEvent e) {}
+
+        @Override
+        public void mouseExited(MouseEvent e) {}
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            if (selecting) {
+                selectShape = extendSelection(e);
+                refresh();
+                return;
+            }
+            if (panning) {
+                view.panBy(panX - e.getX(), panY - e.getY());
+                panX = e.getX();
+                panY = e.getY();
+                present(false);
+                return;
+            }
+            if (scribbleToggle) {
+                if (e.getX() < myPhotoCanvas.getWidth() && e.getY() < myPhotoCanvas.getHeight() && e.getX() >= 0 && e.getY() >= 0 && currentImage != null && currentStroke != null && !jobScheduler.isBusy()) {
+                    Graphics2D pen = (Graphics2D) currentImage.getGraphics();
+                    pen.setColor(penColor);
+                    BasicStroke stroke = new BasicStroke(penSizeSlider.getValue() / 5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+                    pen.setStroke(stroke);
+                    // Pen positions are on the screen; the line goes where they land in the image at the current zoom.
+                    int x1 = (int) view.toImageX(recentX);
+                    int y1 = (int) view.toImageY(recentY);
+                    int x2 = (int) view.toImageX(e.getX());
+                    int y2 = (int) view.toImageY(e.getY());
+                    Rectangle segment = segmentBounds(x1, y1, x2, y2, stroke.getLineWidth());
+                    currentStroke.touch(segment);
+                    pen.drawLine(x1, y1, x2, y2);
+                    recentX = e.getX();
+                    recentY = e.getY();
+                    pen.dispose();
+                    imageChangedInPlace();
+                    // Re-counting the few tiles under the segment keeps the histogram live as the stroke goes on.
+                    updateHistogram(List.of(segment));
+                    // Only the segment just drawn needs rescaling, so this costs the same on a huge photo as a small one.
+                    myPhotoCanvas.drawArea(segment);
+                }
+            }
+        }
+
+        private Shape extendSelection(MouseEvent e) {
+            double x = view.toImageX(e.getX());
+            double y = view.toImageY(e.getY());
+            selectPath.lineTo(x, y);
+            return selectionShape(x, y);
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e) {
+
+        }
+
+        @Override
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            if (currentImage != null) {
+                view.setImage(shownImage());
+                view.zoomAt(Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+                present(false);
+            }
+        }
+    }
+
+    class ScribbleOn extends JMenuItem implements ActionListener {
+
+        ScribbleOn() {
+            super("Scribble");
+            addActionListener(this);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            scribbleToggle = !scribbleToggle;
+            if (scribbleToggle) {
+                selectMode = null;
+                penSizeSlider.setVisible(true);
+                penColor = JColorChooser.showDialog(myPhotoCanvas,
+                        "Choose Pen Color", penColor);
+                if (penColor == null) {
+                    penColor = Color.BLACK;
+                }
+            }
+        }
+    }
+
+    // Dragging on the canvas selects with this tool from now on (and stops scribbling).
+    class SelectTool extends JMenuItem implements ActionListener {
+        private final SelectMode mode;
+
+        SelectTool(String name, SelectMode mode) {
+            super(name);
+            this.mode = mode;
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            selectMode = mode;
+            scribbleToggle = false;
+            if (mode == SelectMode.BRUSH) {
+                penSizeSlider.setVisible(true);
+            }
+        }
+    }
+
+    class SelectNone extends JMenuItem implements ActionListener {
+        SelectNone() {
+            super("Select None");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            selection = null;
+            myPhotoCanvas.refresh();
+        }
+    }
+
+    class ImageOpen extends JMenuItem implements ActionListener {
+        ImageOpen() {
+            super("Open");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            JFileChooser myJFileChooser = new JFileChooser();
+            int state = myJFileChooser.showOpenDialog(myJFrame);
+            if (state == JFileChooser.APPROVE_OPTION) {
+                File file = myJFileChooser.getSelectedFile();
+                forgetBefore();
+                pendingFilters.clear();
+                updateTitle();
+                if (ProjectFile.isProject(file)) {
+                    openProject(file);
+                    return;
+                }
+                int previewWidth = myPhotoCanvas.getWidth();
+                int previewHeight = myPhotoCanvas.getHeight();
+                jobScheduler.submit("Opening " + file.getName(), progress -> {
+                    PerformanceMonitor.Timing opening = PerformanceMonitor.start(PerformanceMonitor.OPEN, file.getName(), null);
+                    PerformanceMonitor.Timing firstPixels = PerformanceMonitor.start(PerformanceMonitor.FIRST_PIXELS, file.getName(), null);
+                    // A screen-sized preview goes up first. Everything else queues behind this job, so nothing can
+                    // edit the preview while the full image is still decoding.
+                    BufferedImage preview = ImagePreview.read(file, previewWidth, previewHeight);
+                    BufferedImage previous = JobScheduler.onEventThread(() -> currentImage);
+                    if (preview != null) {
+                        JobScheduler.onEventThread(() -> {
+                            currentImage = preview;
+                            myPhotoCanvas.fitToWindow();
+                            return null;
+                        });
+                        firstPixels.finish(preview);
+                    }
+                    try {
+                        BufferedImage image = MappedImage.read(file, progress);
+                        if (preview == null) {
+                            firstPixels.finish(image);
+                        }
+                        opening.finish(image);
+                        return new OpenedImage(image, ImageHistogram.of(image));
+                    } catch (Exception exception) {
+                        if (preview != null) {
+                            JobScheduler.onEventThread(() -> {
+                                currentImage = previous;
+                                myPhotoCanvas.fitToWindow();
+                                return null;
+                            });
+                        }
+                        throw exception;
+                    }
+                }, opened -> {
+                    currentImage = opened.image;
+                    setHistogram(opened.histogram);
+                    selection = null;
+                    project = null;
+                    history.clear();
+                    myPhotoCanvas.fitToWindow();
+                });
+            }
+        }
+    }
+
+    // Projects come back with their history, colors and view as they were saved. Only the index is read here; the
+    // tiles are decoded as the view draws them.
+    private void openProject(File file) {
+        jobScheduler.submit("Opening " + file.getName(), progress -> {
+            PerformanceMonitor.Timing opening = PerformanceMonitor.start(PerformanceMonitor.OPEN, file.getName(), "project");
+            ProjectFile.Opened opened = ProjectFile.open(file);
+            opening.finish(opened.image);
+            return opened;
+        }, opened -> {
+            ProjectFile.State state = opened.state;
+            currentImage = opened.image;
+            project = opened.project;
+            selection = null;
+            history.load(opened.undo, opened.redo);
+            filterColor = state.filterColor;
+            penColor = state.penColor;
+            penSizeSlider.setValue(state.penSize);
+            setHistogram(null);
+            if (showHistogram.isSelected()) {
+                countHistogram();
+            }
+            if (opened.overview != null) {
+                myPhotoCanvas.seedPyramid(opened.overview);
+            }
+            if (state.zoom > 0) {
+                myPhotoCanvas.showAt(state.zoom, state.centreX, state.centreY);
+            } else {
+                myPhotoCanvas.fitToWindow();
+            }
+        });
+    }
+
+    // What a project saves along with the image.
+    private ProjectFile.State editState() {
+        Point2D centre = myPhotoCanvas.getCentre();
+        return new ProjectFile.State(filterColor, penColor, penSizeSlider.getValue(),
+                myPhotoCanvas.isFitting() ? 0 : myPhotoCanvas.getZoom(), centre.getX(), centre.getY());
+    }
+
+    class ImageSave extends JMenuItem implements ActionListener {
+        private static final String PNG = "PNG (lossless)";
+        private static final String JPEG = "JPEG (lossy, fast)";
+        private static final String PROJECT = "PhotoEditor project (keeps history)";
+        private int pngLevel = PngEncoder.DEFAULT_LEVEL;
+        private PngEncoder.Filter pngFilter = PngEncoder.DEFAULT_FILTER;
+        private double jpegQuality = ImageSaver.DEFAULT_JPEG_QUALITY;
+
+        ImageSave() {
+            super("Save");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            JFileChooser myJFileChooser = new JFileChooser();
+            int state = myJFileChooser.showSaveDialog(myJFrame);
+            if (state == JFileChooser.APPROVE_OPTION) {
+                File file = myJFileChooser.getSelectedFile();
+                String name = file.getName().toLowerCase();
+                JComboBox<String> formatBox = new JComboBox<>(new String[]{PNG, JPEG, PROJECT});
+                formatBox.setSelectedItem(name.endsWith(".jpg") || name.endsWith(".jpeg") ? JPEG
+                        : name.endsWith("." + ProjectFile.EXTENSION) ? PROJECT : PNG);
+                SpinnerNumberModel levelModel = new SpinnerNumberModel(pngLevel, 0, 9, 1);
+                JComboBox<PngEncoder.Filter> filterBox = new JComboBox<>(PngEncoder.Filter.values());
+                filterBox.setSelectedItem(pngFilter);
+                SpinnerNumberModel qualityModel = new SpinnerNumberModel(jpegQuality, 0.05, 1, 0.05);
+                JPanel options = new JPanel(new GridLayout(4, 2, 5, 5));
+                options.add(new JLabel("Format"));
+                options.add(formatBox);
+                options.add(new JLabel("PNG compression (0-9)"));
+                options.add(new JSpinner(levelModel));
+                options.add(new JLabel("PNG row filter"));
+                options.add(filterBox);
+                options.add(new JLabel("JPEG quality"));
+                options.add(new JSpinner(qualityModel));
+                if (JOptionPane.showConfirmDialog(myJFrame, options, "Save", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+                boolean jpeg = formatBox.getSelectedItem() == JPEG;
+                boolean projectFormat = formatBox.getSelectedItem() == PROJECT;
+                pngLevel = levelModel.getNumber().intValue();
+                pngFilter = (PngEncoder.Filter) filterBox.getSelectedItem();
+                jpegQuality = qualityModel.getNumber().doubleValue();
+                int level = pngLevel;
+                PngEncoder.Filter filter = pngFilter;
+                float quality = (float) jpegQuality;
+                applyPendingFilters();
+                // Queued behind the pending filters, so it saves their result. Nothing can draw on the image while a
+                // job is running, so the job can encode currentImage itself rather than a copy of it.
+                jobScheduler.submit("Saving " + file.getName(), progress -> {
+                    BufferedImage image = JobScheduler.onEventThread(() -> currentImage);
+                    PerformanceMonitor.Timing timing = PerformanceMonitor.start(PerformanceMonitor.SAVE, file.getName(),
+                            projectFormat ? "project" : jpeg ? "JPEG quality " + quality : "PNG level " + level + ", " + filter);
+                    if (projectFormat) {
+                        ProjectFile.State editState = JobScheduler.onEventThread(PhotoEditor.this::editState);
+                        ProjectFile previous = JobScheduler.onEventThread(() -> project);
+                        ProjectFile saved = ProjectFile.save(previous, file, image, editState, history, progress);
+                        timing.finish(image);
+                        return saved;
+                    }
+                    if (jpeg) {
+                        ImageSaver.saveJpeg(image, file, quality, progress);
+                    } else {
+                        ImageSaver.savePng(image, file, level, filter, progress);
+                    }
+                    timing.finish(image);
+                    return null;
+                }, saved -> {
+                    if (saved != null) {
+                        project = saved;
+                    }
+                });
+            }
+        }
+    }
+
+    class ImageClear extends JMenuItem implements ActionListener {
+        ImageClear() {
+            super("Clear");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            runFilter("Clear", (source, progress) -> {
+                BufferedImage blank = MappedImage.createCompatible(source);
+                Graphics2D graphics = blank.createGraphics();
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, blank.getWidth(), blank.getHeight());
+                graphics.dispose();
+                return blank;
+            });
+        }
+    }
+
+    class GreyscaleFilter extends JMenuItem implements ActionListener {
+        GreyscaleFilter() {
+            super("Greyscale");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            applyFilter("Greyscale", PointFilters.greyscale());
+        }
+    }
+
+    class ColorFilter extends JMenuItem implements ActionListener {
+        private int step = PointFilters.DEFAULT_COLOR_FILTER_STEP;
+
+        ColorFilter() {
+            super("ColorFilter");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            if (currentImage != null) {
+                JSlider stepSlider = new JSlider(1, 255, step);
+                JLabel stepLabel = new JLabel("Strength " + step);
+                JPanel options = new JPanel(new GridLayout(1, 2, 5, 5));
+                options.add(stepLabel);
+                options.add(stepSlider);
+                // The step is in color levels, not pixels, so it is the same at any scale.
+                FilterPreview preview = previewFilter(options,
+                        scale -> new PointOperation(LutCompiler.compile(PointFilters.colorFilter(filterColor, stepSlider.getValue()))));
+                stepSlider.addChangeListener(event -> {
+                    stepLabel.setText("Strength " + stepSlider.getValue());
+                    preview.settingsChanged();
+                });
+                if (preview.show(myJFrame, "ColorFilter")) {
+                    step = stepSlider.getValue();
+                    applyFilter("ColorFilter", PointFilters.colorFilter(filterColor, step));
+                }
+            }
+        }
+    }
+
+    class FilterColorPicker extends JMenuItem implements ActionListener {
+        FilterColorPicker() {
+            super("Pick Color For Filter");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            filterColor = JColorChooser.showDialog(myPhotoCanvas,
+                    "Choose Filter Color", filterColor);
+            if (filterColor == null) {
+                filterColor = Color.WHITE;
+            }
+        }
+    }
+
+
+    class PixelateFilter extends JMenuItem implements ActionListener {
+        PixelateFilter() {
+            super("Pixelate");
+            addActionListener(this);
+        }
+
+        private int blockSize = 12;
+
+        public void actionPerformed(ActionEvent e) {
+            if (currentImage != null) {
+                JSlider blockSlider = new JSlider(PixelateOperation.MIN_BLOCK_SIZE, PixelateOperation.MAX_BLOCK_SIZE, blockSize);
+                JLabel blockLabel = new JLabel("Block size " + blockSize);
+                JPanel options = new JPanel(new GridLayout(1, 2, 5, 5));
+                options.add(blockLabel);
+                options.add(blockSlider);
+                FilterPreview preview = previewFilter(options, scale -> {
+                    int scaled = (int) Math.round(blockSlider.getValue() * scale);
+                    // Blocks smaller than a proxy pixel leave it as it is, just as they'd be invisible at this size.
+                    return scaled < PixelateOperation.MIN_BLOCK_SIZE ? (source, progress) -> source : new PixelateOperation(scaled);
+                });
+                blockSlider.addChangeListener(event -> {
+                    blockLabel.setText("Block size " + blockSlider.getValue());
+                    preview.settingsChanged();
+                });
+                if (preview.show(myJFrame, "Pixelate")) {
+                    blockSize = blockSlider.getValue();
+                    runFilter("Pixelate", new PixelateOperation(blockSize));
+                }
+            }
+        }
+    }
+
+    class SharpenFilter extends JMenuItem implements ActionListener {
+        SharpenFilter() {
+            super("Sharpen Image");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            runFilter("Sharpen", new ConvolveOperation(ConvolutionKernel.SHARPEN, BorderMode.CLAMP));
+        }
+    }
+
+    class GaussianBlur extends JMenuItem implements ActionListener {
+        private double sigma = 3;
+        private GaussianBlurEngine.Mode mode = GaussianBlurEngine.Mode.AUTO;
+
+        GaussianBlur() {
+            super("Gaussian Blur");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            if (currentImage != null) {
+                // In half steps, from 0.5 to 200.
+                JSlider sigmaSlider = new JSlider(1, 400, (int) Math.round(sigma * 2));
+                JLabel sigmaLabel = new JLabel("Sigma " + sigmaSlider.getValue() / 2.0);
+                JComboBox<GaussianBlurEngine.Mode> modeBox = new JComboBox<>(GaussianBlurEngine.Mode.values());
+                modeBox.setSelectedItem(mode);
+                JPanel options = new JPanel(new GridLayout(2, 2, 5, 5));
+                options.add(sigmaLabel);
+                options.add(sigmaSlider);
+                options.add(new JLabel("Method"));
+                options.add(modeBox);
+                FilterPreview preview = previewFilter(options, scale -> new BlurOperation(sigmaSlider.getValue() / 2.0 * scale,
+                        (GaussianBlurEngine.Mode) modeBox.getSelectedItem()));
+                sigmaSlider.addChangeListener(event -> {
+                    sigmaLabel.setText("Sigma " + sigmaSlider.getValue() / 2.0);
+                    preview.settingsChanged();
+                });
+                modeBox.addActionListener(event -> preview.settingsChanged());
+                if (!preview.show(myJFrame, "Gaussian Blur")) {
+                    return;
+                }
+                sigma = sigmaSlider.getValue() / 2.0;
+                mode = (GaussianBlurEngine.Mode) modeBox.getSelectedItem();
+                runFilter("Gaussian Blur", new BlurOperation(sigma, mode));
+            }
+        }
+    }
+
+    class KernelFilter extends JMenuItem implements ActionListener {
+        private static final String CUSTOM = "Custom (enter below)";
+        private Object choice = ConvolutionKernel.SHARPEN;
+        private BorderMode border = BorderMode.CLAMP;
+        private String customText = "0 -1 0\n-1 5 -1\n0 -1 0";
+        private boolean normalize = false;
+
+        KernelFilter() {
+            super("Convolve...");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            if (currentImage == null) {
+                return;
+            }
+            JComboBox<Object> kernelBox = new JComboBox<>(ConvolutionKernel.presets());
+            kernelBox.addItem(CUSTOM);
+            kernelBox.setSelectedItem(choice);
+            JComboBox<BorderMode> borderBox = new JComboBox<>(BorderMode.values());
+            borderBox.setSelectedItem(border);
+            JTextArea customArea = new JTextArea(customText, 5, 20);
+            JCheckBox normalizeBox = new JCheckBox("Divide by the sum of the weights", normalize);
+
+            JPanel options = new JPanel(new BorderLayout(5, 5));
+            JPanel choices = new JPanel(new GridLayout(2, 2, 5, 5));
+            choices.add(new JLabel("Kernel"));
+            choices.add(kernelBox);
+            choices.add(new JLabel("Edges"));
+            choices.add(borderBox);
+            options.add(choices, BorderLayout.NORTH);
+            options.add(new JScrollPane(customArea), BorderLayout.CENTER);
+            options.add(normalizeBox, BorderLayout.SOUTH);
+            int state = JOptionPane.showConfirmDialog(myJFrame, options, "Convolve", JOptionPane.OK_CANCEL_OPTION);
+            if (state != JOptionPane.OK_OPTION) {
+                return;
+            }
+            choice = kernelBox.getSelectedItem();
+            border = (BorderMode) borderBox.getSelectedItem();
+            customText = customArea.getText();
+            normalize = normalizeBox.isSelected();
+            ConvolutionKernel kernel;
+            if (choice == CUSTOM) {
+                try {
+                    kernel = ConvolutionKernel.parse(customText, normalize);
+                } catch (IllegalArgumentException exception) {
+                    JOptionPane.showMessageDialog(myJFrame, exception.getMessage(), "Convolve", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+            } else {
+                kernel = (ConvolutionKernel) choice;
+            }
+            runFilter(kernel.name, new ConvolveOperation(kernel, border));
+        }
+    }
+
+    class LutFilter extends JMenuItem implements ActionListener {
+        LutFilter() {
+            super("Apply LUT File...");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            JFileChooser myJFileChooser = new JFileChooser();
+            myJFileChooser.setFileFilter(new FileNameExtensionFilter("Cube LUT files", "cube"));
+            int state = myJFileChooser.showOpenDialog(myJFrame);
+            if (state == JFileChooser.APPROVE_OPTION) {
+                File file = myJFileChooser.getSelectedFile();
+                try {
+                    applyFilter(file.getName(), LutCompiler.readCube(file));
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                    JOptionPane.showMessageDialog(myJFrame, ioException.getMessage(), "Apply LUT File", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }
+    }
+
+    class AutoLevels extends JMenuItem implements ActionListener {
+        AutoLevels() {
+            super("Auto Levels");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            runFilter("Auto Levels", new HistogramAdjustment("levels",
+                    counts -> AutoAdjustments.levels(counts, AutoAdjustments.DEFAULT_CLIP)));
+        }
+    }
+
+    class AutoContrast extends JMenuItem implements ActionListener {
+        AutoContrast() {
+            super("Auto Contrast");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            runFilter("Auto Contrast", new HistogramAdjustment("contrast",
+                    counts -> AutoAdjustments.contrast(counts, AutoAdjustments.DEFAULT_CLIP)));
+        }
+    }
+
+    class AutoWhiteBalance extends JMenuItem implements ActionListener {
+        AutoWhiteBalance() {
+            super("Auto White Balance");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            runFilter("Auto White Balance", new HistogramAdjustment("white balance", AutoAdjustments::whiteBalance));
+        }
+    }
+
+    // An adjustment made from the histogram of whatever image it ends up running on, so queued filters ahead of it are
+    // taken into account. On the current image that's the kept-up-to-date histogram and costs nothing to get; on
+    // anything else (a selection's cut-out, or partway through a deferred pipeline) it is counted there and then.
+    private class HistogramAdjustment implements ImageOperation {
+        private final String name;
+        private final Function<ImageHistogram, ChannelLut> adjustment;
+
+        HistogramAdjustment(String name, Function<ImageHistogram, ChannelLut> adjustment) {
+            this.name = name;
+            this.adjustment = adjustment;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage source, JobProgress progress) {
+            ImageHistogram counted;
+            try {
+                counted = JobScheduler.onEventThread(() -> source == currentImage ? histogram : null);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+            if (counted == null) {
+                counted = ImageHistogram.of(source);
+            }
+            return new PointOperation(adjustment.apply(counted)).apply(source, progress);
+        }
+
+        // The table depends only on the source's pixels, which the cache key already covers.
+        @Override
+        public Object cacheKey() {
+            return List.of("histogram adjustment", name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    class UndoEdit extends JMenuItem implements ActionListener {
+        UndoEdit() {
+            super("Undo");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            stepHistory(true);
+        }
+    }
+
+    class RedoEdit extends JMenuItem implements ActionListener {
+        RedoEdit() {
+            super("Redo");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            stepHistory(false);
+        }
+    }
+
+    class ZoomIn extends JMenuItem implements ActionListener {
+        ZoomIn() {
+            super("Zoom In");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            myPhotoCanvas.zoom(2);
+        }
+    }
+
+    class ZoomOut extends JMenuItem implements ActionListener {
+        ZoomOut() {
+            super("Zoom Out");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            myPhotoCanvas.zoom(0.5);
+        }
+    }
+
+    class ActualSize extends JMenuItem implements ActionListener {
+        ActualSize() {
+            super("Actual Size");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_1, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            myPhotoCanvas.zoom(1 / myPhotoCanvas.getZoom());
+        }
+    }
+
+    class FitToWindow extends JMenuItem implements ActionListener {
+        FitToWindow() {
+            super("Fit to Window");
+            setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            myPhotoCanvas.fitToWindow();
+        }
+    }
+
+    class ApplyPendingFilters extends JMenuItem implements ActionListener {
+        ApplyPendingFilters() {
+            super("Apply Pending Filters");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            applyPendingFilters();
+        }
+    }
+
+    class ParallelismPicker extends JMenuItem implements ActionListener {
+        ParallelismPicker() {
+            super("Filter Threads...");
+            addActionListener(this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            SpinnerNumberModel threads = new SpinnerNumberModel(TileExecutor.shared().getParallelism(), 1,
+                    Math.max(64, Runtime.getRuntime().availableProcessors()), 1);
+            int state = JOptionPane.showConfirmDialog(myJFrame, new JSpinner(threads), "Threads used by filters",
+                    JOptionPane.OK_CANCEL_OPTION);
+            if (state == JOptionPane.OK_OPTION) {
+                TileExecutor.setParallelism(threads.getNumber().intValue());
+            }
+        }
+    }
+
+    private static class FilterResult {
+        final BufferedImage source;
+        final BufferedImage image;
+        final UndoHistory.Edit edit;
+        final ImageHistogram.Update counts;
+
+        FilterResult(BufferedImage source, BufferedImage image, UndoHistory.Edit edit, ImageHistogram.Update counts) {
+            this.source = source;
+            this.image = image;
+            this.edit = edit;
+            this.counts = counts;
+        }
+    }
+
+    private static class HistoryStep {
+        final UndoHistory.Step step;
+        // Only for steps that change the size.
+        final ImageHistogram counted;
+
+        HistoryStep(UndoHistory.Step step, ImageHistogram counted) {
+            this.step = step;
+            this.counted = counted;
+        }
+    }
+
+    private static class OpenedImage {
+        final BufferedImage image;
+        final ImageHistogram histogram;
+
+        OpenedImage(BufferedImage image, ImageHistogram histogram) {
+            this.image = image;
+            this.histogram = histogram;
+        }
+    }
+
+    // Undo and redo are queued like filters, so they never land in the middle of a running job. The stored tiles are
+    // inflated (or read back from the spill file) on the worker; the EDT only swaps them in.
+    private void stepHistory(boolean undo) {
+        jobScheduler.submit(undo ? "Undo" : "Redo", progress -> {
+            BufferedImage current = JobScheduler.onEventThread(() -> currentImage);
+            boolean counting = JobScheduler.onEventThread(() -> histogram != null);
+            UndoHistory.Step step = undo ? history.prepareUndo(current) : history.prepareRedo(current);
+            // A new size means counting the histogram from scratch, which can happen here as well.
+            BufferedImage resized = step == null ? null : step.resizedImage();
+            return new HistoryStep(step, counting && resized != null ? ImageHistogram.of(resized) : null);
+        }, prepared -> {
+            BufferedImage restored = prepared.step == null ? null : history.apply(prepared.step, currentImage);
+            if (restored == null) {
+                return;
+            }
+            forgetBefore();
+            boolean resized = restored != currentImage;
+            currentImage = restored;
+            if (resized) {
+                setHistogram(prepared.counted);
+            } else {
+                updateHistogram(prepared.step.changedAreas());
+            }
+            imageChangedInPlace();
+            if (resized) {
+                myPhotoCanvas.resized();
+                myPhotoCanvas.draw();
+            } else {
+                myPhotoCanvas.drawAreas(prepared.step.changedAreas());
+            }
+        });
+    }
+
+    // The area a pen segment can touch, in image coordinates, with a margin for the round caps and antialiasing.
+    private static Rectangle segmentBounds(int x1, int y1, int x2, int y2, float strokeWidth) {
+        int margin = (int) Math.ceil(strokeWidth / 2) + 2;
+        return new Rectangle(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin,
+                Math.abs(x2 - x1) + 2 * margin + 1, Math.abs(y2 - y1) + 2 * margin + 1);
+    }
+
+    // Runs everything queued up while Defer Filters was on, fused into as few passes as possible.
+    private void applyPendingFilters() {
+        if (!pendingFilters.isEmpty()) {
+            FilterPipeline pipeline = pendingFilters.copy();
+            pendingFilters.clear();
+            updateTitle();
+            // Straight to submitFilter: each filter in it already has the selection it was added under.
+            submitFilter(String.join(" + ", pipeline.getNames()), pipeline);
+        }
+    }
+
+    private void updateHistogram(List<Rectangle> changed) {
+        if (histogram != null) {
+            setHistogram(histogram.update(currentImage, changed));
+        }
+    }
+
+    // For an opened project, the first time the histogram is shown.
+    private void countHistogram() {
+        jobScheduler.submit("Counting histogram", progress -> {
+            BufferedImage image = JobScheduler.onEventThread(() -> currentImage);
+            return ImageHistogram.of(image);
+        }, this::setHistogram);
+    }
+
+    // A settings dialog previewing filter on a small copy of the current image, limited to the selection like the real
+    // thing will be. filter gets the scale of the copy, for settings measured in pixels.
+    private FilterPreview previewFilter(JComponent controls, DoubleFunction<ImageOperation> filter) {
+        return new FilterPreview(controls, myPhotoCanvas.getPyramid(), selection,
+                myPhotoCanvas.getWidth() * 2 / 3, myPhotoCanvas.getHeight() * 2 / 3, filter);
+    }
+
+    private void setHistogram(ImageHistogram updated) {
+        histogram = updated;
+        histogramPanel.setHistogram(updated);
+    }
+
+    private BufferedImage shownImage() {
+        return showBefore.isSelected() && beforeImage != null ? beforeImage : currentImage;
+    }
+
+    private void forgetBefore() {
+        beforeImage = null;
+        showBefore.setSelected(false);
+    }
+
+    private void updateTitle() {
+        int pending = pendingFilters.size();
+        myJFrame.setTitle(pending == 0 ? "PhotoEditor" : "PhotoEditor (" + pending + (pending == 1 ? " filter" : " filters") + " pending)");
+    }
+
+    // Scribbling draws straight into currentImage instead of making a new image, so anything cached per image is stale.
+    private void imageChangedInPlace() {
+        SummedAreaTable.invalidate();
+    }
+
+    // Point filters are compiled to lookup tables first, so the per-pixel cost is a few table reads.
+    private void applyFilter(String name, PackedColorTransformer transformer) {
+        runFilter(name, new PointOperation(LutCompiler.compile(transformer)));
+    }
+}
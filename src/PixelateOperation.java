@@ -0,0 +1,108 @@
+// Replaces each blockSize x blockSize block with its mean color. The means come from a SummedAreaTable, so the cost
+// per pixel is the same for 2 pixel blocks as for 256 pixel ones. Memory-mapped images are too big for a table, so
+// they are done a band of whole blocks at a time, summing each block directly (every pixel is still read once).
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+class PixelateOperation implements ImageOperation {
+    static final int MIN_BLOCK_SIZE = 2;
+    static final int MAX_BLOCK_SIZE = 256;
+
+    private final int blockSize;
+
+    PixelateOperation(int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage image, JobProgress progress) {
+        if (MappedImage.isMapped(image)) {
+            return applyInBands(image, progress);
+        }
+        BufferedImage source = IntImages.toIntRGB(image);
+        BufferedImage result = IntImages.createCompatible(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] in = IntImages.pixels(source);
+        int[] out = IntImages.pixels(result);
+        progress.expectPasses(3);
+        SummedAreaTable table = SummedAreaTable.of(image, progress);
+        // Bands are a whole number of blocks tall so no block is split between two threads.
+        TileExecutor.shared().forEachRowBand(width, height, blockSize, progress, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y += blockSize) {
+                int blockBottom = Math.min(y + blockSize, height);
+                for (int x = 0; x < width; x += blockSize) {
+                    int blockRight = Math.min(x + blockSize, width);
+                    int mean = table.meanRGB(x, y, blockRight, blockBottom) & 0x00FFFFFF;
+                    for (int b = y; b < blockBottom; b++) {
+                        for (int i = b * width + x; i < b * width + blockRight; i++) {
+                            out[i] = (in[i] & 0xFF000000) | mean;
+                        }
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private BufferedImage applyInBands(BufferedImage source, JobProgress progress) {
+        BufferedImage result = MappedImage.createCompatible(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        TileExecutor.shared().forEachRowBand(width, height, blockSize, progress, (x0, y0, x1, y1) -> {
+            int[] band = IntImages.readRect(source, 0, y0, width, y1 - y0, null);
+            for (int y = 0; y < y1 - y0; y += blockSize) {
+                int blockBottom = Math.min(y + blockSize, y1 - y0);
+                for (int x = 0; x < width; x += blockSize) {
+                    int blockRight = Math.min(x + blockSize, width);
+                    long red = 0;
+                    long green = 0;
+                    long blue = 0;
+                    for (int b = y; b < blockBottom; b++) {
+                        for (int i = b * width + x; i < b * width + blockRight; i++) {
+                            red += (band[i] >> 16) & 0xFF;
+                            green += (band[i] >> 8) & 0xFF;
+                            blue += band[i] & 0xFF;
+                        }
+                    }
+                    // Rounded the same way as SummedAreaTable.meanRGB, so both paths give the same picture.
+                    int count = (blockRight - x) * (blockBottom - y);
+                    int mean = (int) ((red + count / 2) / count) << 16 | (int) ((green + count / 2) / count) << 8
+                            | (int) ((blue + count / 2) / count);
+                    for (int b = y; b < blockBottom; b++) {
+                        for (int i = b * width + x; i < b * width + blockRight; i++) {
+                            band[i] = (band[i] & 0xFF000000) | mean;
+                        }
+                    }
+                }
+            }
+            IntImages.writeRect(result, 0, y0, width, y1 - y0, band);
+        });
+        return result;
+    }
+
+    // Blocks line up with the image's top left corner, so the area is widened to whole blocks.
+    @Override
+    public Rectangle sourceArea(Rectangle area, int width, int height) {
+        int x0 = Math.floorDiv(area.x, blockSize) * blockSize;
+        int y0 = Math.floorDiv(area.y, blockSize) * blockSize;
+        int x1 = -Math.floorDiv(-(area.x + area.width), blockSize) * blockSize;
+        int y1 = -Math.floorDiv(-(area.y + area.height), blockSize) * blockSize;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Object cacheKey() {
+        return List.of("pixelate", blockSize);
+    }
+
+    @Override
+    public String toString() {
+        return blockSize + " pixel blocks";
+    }
+}
@@ -0,0 +1,60 @@
+// An image split into one float array per channel. Neighbourhood filters work on these because the inner loops then
+// walk plain float arrays, which the JIT can turn into SIMD code, instead of unpacking ints pixel by pixel.
+
+import java.awt.image.BufferedImage;
+
+final class PlanarImage {
+    final int width;
+    final int height;
+    final float[] red;
+    final float[] green;
+    final float[] blue;
+    // Alpha is passed through untouched, so it stays packed.
+    final int[] alpha;
+
+    PlanarImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        red = new float[width * height];
+        green = new float[width * height];
+        blue = new float[width * height];
+        alpha = new int[width * height];
+    }
+
+    float[] channel(int index) {
+        return index == 0 ? red : index == 1 ? green : blue;
+    }
+
+    static PlanarImage from(BufferedImage image, JobProgress progress) {
+        BufferedImage source = IntImages.toIntRGB(image);
+        int width = source.getWidth();
+        int[] pixels = IntImages.pixels(source);
+        PlanarImage planes = new PlanarImage(width, source.getHeight());
+        TileExecutor.shared().forEachRowBand(width, source.getHeight(), 1, progress, (x0, y0, x1, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                int pixel = pixels[i];
+                planes.alpha[i] = pixel & 0xFF000000;
+                planes.red[i] = (pixel >> 16) & 0xFF;
+                planes.green[i] = (pixel >> 8) & 0xFF;
+                planes.blue[i] = pixel & 0xFF;
+            }
+        });
+        return planes;
+    }
+
+    // Rounds and clamps back to 0-255. The result has alpha only if the template does.
+    BufferedImage toImage(BufferedImage template, JobProgress progress) {
+        BufferedImage result = IntImages.createCompatible(template);
+        int[] pixels = IntImages.pixels(result);
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                pixels[i] = alpha[i] | toByte(red[i]) << 16 | toByte(green[i]) << 8 | toByte(blue[i]);
+            }
+        });
+        return result;
+    }
+
+    private static int toByte(float value) {
+        return Math.min(Math.max((int) (value + 0.5f), 0), 255);
+    }
+}
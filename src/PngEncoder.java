@@ -0,0 +1,265 @@
+// Writes 8-bit RGB / RGBA PNGs, deflating on every filter thread instead of one.
+//
+// The image is cut into chunks of rows. Each chunk is filtered and deflated on its own with a SYNC_FLUSH, which ends
+// its output on a byte boundary, so the pieces can be written one after another as a single zlib stream. (The same
+// trick pigz uses.) Each chunk is primed with the last 32 KB of filtered data before it as a preset dictionary, so
+// matches can still reach back across chunk boundaries and the file comes out about as small as a one-thread encode.
+// The zlib checksum is an Adler-32 of all the filtered data, put together from the per-chunk checksums.
+// Chunks are done a batch at a time, so only a batch's worth of compressed data is ever held in memory.
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+final class PngEncoder {
+    // Per-row prediction, applied before deflating. ADAPTIVE picks whichever of the others gives the smallest sum of
+    // absolute differences for each row: the usual heuristic, slowest but normally the smallest files.
+    enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    static final int DEFAULT_LEVEL = 6;
+    static final Filter DEFAULT_FILTER = Filter.ADAPTIVE;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int WINDOW = 32 * 1024;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private final int level;
+    private final Filter filter;
+
+    PngEncoder(int level, Filter filter) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be 0 to 9: " + level);
+        }
+        this.level = level;
+        this.filter = filter;
+    }
+
+    void write(BufferedImage image, OutputStream stream, JobProgress progress) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        int rowBytes = 1 + width * (alpha ? 4 : 3);
+        int chunkRows = Math.max(1, CHUNK_BYTES / rowBytes);
+        int chunks = (height + chunkRows - 1) / chunkRows;
+        int batchChunks = Math.max(1, TileExecutor.shared().getParallelism() * 4);
+        int batches = (chunks + batchChunks - 1) / batchChunks;
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);
+        headerData.writeByte(alpha ? 6 : 2);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+        writeChunk(out, "IDAT", zlibHeader(), 0, 2);
+
+        progress.expectPasses(batches);
+        int adler = 1;
+        byte[][] compressed = new byte[batchChunks][];
+        int[] checksums = new int[batchChunks];
+        long[] lengths = new long[batchChunks];
+        for (int first = 0; first < chunks; first += batchChunks) {
+            int count = Math.min(batchChunks, chunks - first);
+            int firstChunk = first;
+            // One tile per chunk: tile row c is chunk firstChunk + c. The executor is looked up each batch, since
+            // setParallelism can replace (and shut down) the shared one part way through a long save.
+            TileExecutor.shared().forEachTile(1, count, 1, 1, progress, (x0, y0, x1, y1) -> {
+                int chunk = firstChunk + y0;
+                int top = chunk * chunkRows;
+                int bottom = Math.min(height, top + chunkRows);
+                Deflated result = deflate(image, alpha, rowBytes, top, bottom, bottom == height);
+                compressed[y0] = result.data;
+                checksums[y0] = result.adler;
+                lengths[y0] = (long) (bottom - top) * rowBytes;
+            });
+            for (int c = 0; c < count; c++) {
+                writeChunk(out, "IDAT", compressed[c], 0, compressed[c].length);
+                adler = combineAdler32(adler, checksums[c], lengths[c]);
+                compressed[c] = null;
+            }
+        }
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        writeChunk(out, "IDAT", trailer, 0, 4);
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    private static final class Deflated {
+        final byte[] data;
+        final int adler;
+
+        Deflated(byte[] data, int adler) {
+            this.data = data;
+            this.adler = adler;
+        }
+    }
+
+    // Filters and deflates rows [top, bottom). The rows just above are filtered again (cheaply, it's at most 32 KB)
+    // to rebuild the dictionary the chunk before ended with.
+    private Deflated deflate(BufferedImage image, boolean alpha, int rowBytes, int top, int bottom, boolean last) {
+        int width = image.getWidth();
+        int dictionaryRows = top == 0 ? 0 : Math.min(top, (WINDOW + rowBytes - 1) / rowBytes);
+        int start = top - dictionaryRows;
+        int[] pixels = new int[width];
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[] filtered = new byte[rowBytes];
+        byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[5][rowBytes] : null;
+        if (start > 0) {
+            toBytes(IntImages.readRect(image, 0, start - 1, width, 1, pixels), alpha, previous);
+        }
+        byte[] dictionary = new byte[dictionaryRows * rowBytes];
+        Deflater deflater = new Deflater(level, true);
+        Adler32 adler = new Adler32();
+        ByteArrayOutputStream out = new ByteArrayOutputStream((bottom - top) * rowBytes / 3 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            for (int y = start; y < bottom; y++) {
+                toBytes(IntImages.readRect(image, 0, y, width, 1, pixels), alpha, current);
+                byte[] row = filterRow(current, previous, alpha ? 4 : 3, filtered, candidates);
+                if (y < top) {
+                    System.arraycopy(row, 0, dictionary, (y - start) * rowBytes, rowBytes);
+                    if (y == top - 1) {
+                        int length = Math.min(WINDOW, dictionary.length);
+                        deflater.setDictionary(dictionary, dictionary.length - length, length);
+                    }
+                } else {
+                    adler.update(row, 0, rowBytes);
+                    deflater.setInput(row, 0, rowBytes);
+                    while (!deflater.needsInput()) {
+                        out.write(buffer, 0, deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH));
+                    }
+                }
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int written;
+                do {
+                    written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, written);
+                } while (written == buffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Deflated(out.toByteArray(), (int) adler.getValue());
+    }
+
+    // Packed pixels to PNG's R, G, B(, A) byte order, leaving byte 0 for the filter type.
+    private static void toBytes(int[] pixels, boolean alpha, byte[] row) {
+        int o = 1;
+        for (int pixel : pixels) {
+            row[o++] = (byte) (pixel >> 16);
+            row[o++] = (byte) (pixel >> 8);
+            row[o++] = (byte) pixel;
+            if (alpha) {
+                row[o++] = (byte) (pixel >>> 24);
+            }
+        }
+    }
+
+    private byte[] filterRow(byte[] row, byte[] above, int bpp, byte[] out, byte[][] candidates) {
+        if (filter != Filter.ADAPTIVE) {
+            applyFilter(filter.ordinal(), row, above, bpp, out);
+            return out;
+        }
+        byte[] best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            byte[] candidate = candidates[type];
+            applyFilter(type, row, above, bpp, candidate);
+            long score = 0;
+            for (int i = 1; i < candidate.length; i++) {
+                score += Math.abs((int) candidate[i]);
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    // Filter types are numbered as in the PNG spec, which matches the order of the Filter enum.
+    private static void applyFilter(int type, byte[] row, byte[] above, int bpp, byte[] out) {
+        out[0] = (byte) type;
+        for (int i = 1; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i > bpp ? row[i - bpp] & 0xff : 0;
+            int b = above[i] & 0xff;
+            int c = i > bpp ? above[i - bpp] & 0xff : 0;
+            int prediction;
+            switch (type) {
+                case 1: prediction = a; break;
+                case 2: prediction = b; break;
+                case 3: prediction = (a + b) >> 1; break;
+                case 4: prediction = paeth(a, b, c); break;
+                default: prediction = 0;
+            }
+            out[i] = (byte) (x - prediction);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    // The zlib header for a deflate stream with a 32 KB window at this level.
+    private byte[] zlibHeader() {
+        int levelFlag = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = levelFlag << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    // Adler-32 of A followed by B, from the checksums of A and B and the length of B (zlib's adler32_combine).
+    static int combineAdler32(int adlerA, int adlerB, long lengthB) {
+        long remainder = lengthB % ADLER_BASE;
+        long sum1 = adlerA & 0xffff;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (adlerB & 0xffff) + ADLER_BASE - 1;
+        sum2 += (adlerA >>> 16) + (adlerB >>> 16) + ADLER_BASE - remainder;
+        sum1 %= ADLER_BASE;
+        sum2 %= ADLER_BASE;
+        return (int) (sum2 << 16 | sum1);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,62 @@
+// Runs a PackedColorTransformer over every pixel. Each output pixel depends only on the same input pixel.
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+class PointOperation implements ImageOperation {
+    private final PackedColorTransformer transformer;
+
+    PointOperation(PackedColorTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    PackedColorTransformer getTransformer() {
+        return transformer;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage image, JobProgress progress) {
+        if (MappedImage.isMapped(image)) {
+            return applyInBands(image, progress);
+        }
+        BufferedImage source = IntImages.toIntRGB(image);
+        BufferedImage result = IntImages.createCompatible(source);
+        int[] in = IntImages.pixels(source);
+        int[] out = IntImages.pixels(result);
+        int width = source.getWidth();
+        TileExecutor.shared().forEachRowBand(width, source.getHeight(), 1, progress, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                transformer.transformRow(in, out, y * width, (y + 1) * width);
+            }
+        });
+        return result;
+    }
+
+    // For memory-mapped images: each band is copied out, transformed and copied into the (also mapped) result,
+    // so only one band per thread is ever on the heap.
+    private BufferedImage applyInBands(BufferedImage source, JobProgress progress) {
+        BufferedImage result = MappedImage.createCompatible(source);
+        int width = source.getWidth();
+        TileExecutor.shared().forEachRowBand(width, source.getHeight(), 1, progress, (x0, y0, x1, y1) -> {
+            int[] band = IntImages.readRect(source, 0, y0, width, y1 - y0, null);
+            transformer.transformRow(band, band, 0, band.length);
+            IntImages.writeRect(result, 0, y0, width, y1 - y0, band);
+        });
+        return result;
+    }
+
+    // Compiled tables compare by content; a plain lambda can't be compared at all.
+    @Override
+    public Object cacheKey() {
+        if (transformer instanceof ChannelLut || transformer instanceof Lut3D) {
+            return List.of("point", transformer);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        // Compiled filters are a ChannelLut or Lut3D; anything else is a composed lambda with no useful name.
+        return transformer.getClass().isSynthetic() ? "point filter" : transformer.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,586 @@
+// PhotoEditor's own file format (.pep), for putting work in progress away and picking it up again quickly.
+//
+// The image is stored as 256x256 tiles, each compressed on its own with LZ4, with an index of where each one is. The
+// file also keeps the edit state: the filter and pen colors, pen size, where the view was, and the undo/redo history.
+// Saving to the same file again appends only the tiles whose hash changed since the last save and the edits that are
+// new, then a new index; the last index in the file is the live one. Once replaced tiles and edits are more than
+// half the file, the next save writes a fresh compact copy instead.
+//
+// Opening reads the index and the history and maps the rest of the file into memory. The image's pixels are a
+// ProjectTiles buffer, which decompresses a tile the first time it is read, so the tiles the view needs are the only
+// ones decoded up front.
+//
+// Fitting a big image in the window needs a coarse level of its pyramid, which would otherwise be averaged down from
+// every tile. So the file also keeps that level: the most detailed one at most OVERVIEW_SIZE across (enough for a
+// fitted view on a screen up to half that), tiled and compressed the same way. Opening seeds the canvas's pyramid with
+// it, and saving again only rebuilds the overview tiles over image tiles that changed.
+//
+// Layout: an 8 byte header ("PEPROJ", version), then tile, edit and index blocks in any order, then a 16 byte trailer
+// at the very end: the offset and length of the live index and an end marker. Numbers are big endian.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.List;
+
+final class ProjectFile {
+    static final String EXTENSION = "pep";
+    static final int TILE_SIZE = 256;
+    private static final byte[] MAGIC = {'P', 'E', 'P', 'R', 'O', 'J', 0, 1};
+    private static final int END_MARKER = 0x50455045;
+    private static final int TRAILER_LENGTH = 16;
+    // Tiles hashed and encoded at a time while saving, so a huge image never has all its tiles in memory at once.
+    private static final int BATCH_TILES = 64;
+    // Maps are windows of 1 GB (plus the longest tile, so no tile is split between two windows).
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int OVERVIEW_SIZE = 4096;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] hashes;
+    // The overview's pyramid level (0 for none: the image is small enough already) and where its tiles are.
+    private int overviewLevel;
+    private long[] overviewOffsets = new long[0];
+    private int[] overviewLengths = new int[0];
+    // Edits already in the file, by identity, with the offset and length of their blocks.
+    private final Map<UndoHistory.Edit, long[]> edits = new WeakHashMap<>();
+    // The file's length after this save, and how much of it the live index points at.
+    private long length;
+    private long liveBytes;
+
+    private ProjectFile(File file, int width, int height, boolean alpha) {
+        this.file = file.getAbsoluteFile();
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        int tiles = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        offsets = new long[tiles];
+        lengths = new int[tiles];
+        hashes = new long[tiles];
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // The level of an image's pyramid kept as its overview.
+    static int overviewLevel(int width, int height) {
+        int level = 0;
+        while (Math.max(width, height) > OVERVIEW_SIZE) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+
+    static boolean isProject(File file) {
+        byte[] header = new byte[MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+        } catch (IOException exception) {
+            return false;
+        }
+        return Arrays.equals(header, MAGIC);
+    }
+
+    // Saves image, state and history to file. previous is what the last save or open returned (or null); when it is
+    // the same file, unchanged since, at the same size, only what changed is appended. Otherwise, or when the file is
+    // mostly dead space, it is rewritten whole into a temp file that then replaces it. Returns what to pass next time.
+    static ProjectFile save(ProjectFile previous, File file, BufferedImage image, State state, UndoHistory history,
+                            JobProgress progress) throws IOException {
+        boolean appendable = previous != null && previous.file.equals(file.getAbsoluteFile()) && file.length() == previous.length
+                && previous.width == image.getWidth() && previous.height == image.getHeight()
+                && previous.alpha == image.getColorModel().hasAlpha();
+        if (appendable && previous.liveBytes * 2 >= previous.length) {
+            return append(previous, file, image, state, history, progress);
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("photoeditor-save", ".tmp", directory);
+        try {
+            ProjectFile saved;
+            try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+                out.setLength(0);
+                out.write(MAGIC);
+                saved = write(out, MAGIC.length, null, file, image, state, history, progress);
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException exception) {
+                // Windows won't replace a file that is still memory-mapped, as the open project's is. Appending to it
+                // still works, so do that and leave compacting for a save once the file is free.
+                if (!appendable) {
+                    throw new IOException("Couldn't replace " + file + ", which may still be open; try saving under another name", exception);
+                }
+                exception.printStackTrace();
+                return append(previous, file, image, state, history, progress);
+            }
+            return saved;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static ProjectFile append(ProjectFile previous, File file, BufferedImage image, State state, UndoHistory history,
+                                      JobProgress progress) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            try {
+                return write(out, previous.length, previous, file, image, state, history, progress);
+            } catch (IOException | RuntimeException exception) {
+                // Cut off the half-written save, so the old trailer is at the end again.
+                out.setLength(previous.length);
+                throw exception;
+            }
+        }
+    }
+
+    // Writes everything from start on. Tiles and edits that reuse has already put in this file are pointed at, not
+    // written again.
+    private static ProjectFile write(RandomAccessFile out, long start, ProjectFile reuse, File file, BufferedImage image,
+                                     State state, UndoHistory history, JobProgress progress) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        ProjectFile saved = new ProjectFile(file, width, height, alpha);
+        ProjectTiles lazy = image.getRaster().getDataBuffer() instanceof ProjectTiles
+                ? (ProjectTiles) image.getRaster().getDataBuffer() : null;
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = saved.offsets.length;
+        out.seek(start);
+        // Not closed: that would close out's channel under the caller.
+        OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 1 << 16);
+        long position = start;
+        progress.beginPass(tiles);
+        for (int first = 0; first < tiles; first += BATCH_TILES) {
+            progress.checkCancelled();
+            int batch = first;
+            int count = Math.min(BATCH_TILES, tiles - first);
+            byte[][] blobs = new byte[count][];
+            // One "tile" per project tile, so the executor spreads them over the threads.
+            TileExecutor.shared().forEachTile(count, 1, 1, 1, (x0, y0, x1, y1) -> {
+                int tile = batch + x0;
+                if (lazy != null && lazy.isClean(tile)) {
+                    // Still what some project file has: no need to read the pixels, let alone encode them.
+                    saved.hashes[tile] = lazy.hash(tile);
+                    if (!unchanged(reuse, tile, saved.hashes[tile])) {
+                        blobs[x0] = lazy.compressed(tile);
+                    }
+                    return;
+                }
+                int left = (tile % columns) * TILE_SIZE;
+                int top = (tile / columns) * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - left);
+                int h = Math.min(TILE_SIZE, height - top);
+                int[] pixels = IntImages.readRect(image, left, top, w, h, null);
+                if (!alpha) {
+                    // Whatever is in the unused top byte, it reads back as opaque.
+                    for (int i = 0; i < w * h; i++) {
+                        pixels[i] |= 0xFF000000;
+                    }
+                }
+                saved.hashes[tile] = FilterCache.hash(pixels, w * h);
+                if (!unchanged(reuse, tile, saved.hashes[tile])) {
+                    blobs[x0] = encodeTile(pixels, w * h, w, alpha);
+                }
+            });
+            for (int i = 0; i < count; i++) {
+                int tile = first + i;
+                if (blobs[i] == null) {
+                    saved.offsets[tile] = reuse.offsets[tile];
+                    saved.lengths[tile] = reuse.lengths[tile];
+                } else {
+                    stream.write(blobs[i]);
+                    saved.offsets[tile] = position;
+                    saved.lengths[tile] = blobs[i].length;
+                    position += blobs[i].length;
+                }
+                saved.liveBytes += saved.lengths[tile];
+            }
+            progress.worked(count);
+        }
+        position = writeOverview(stream, position, reuse, saved, image, progress);
+        List<UndoHistory.Edit> undo = history.undoEdits();
+        List<UndoHistory.Edit> redo = history.redoEdits();
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(width);
+        index.writeInt(height);
+        index.writeBoolean(alpha);
+        index.writeInt(TILE_SIZE);
+        for (int tile = 0; tile < tiles; tile++) {
+            index.writeLong(saved.offsets[tile]);
+            index.writeInt(saved.lengths[tile]);
+            index.writeLong(saved.hashes[tile]);
+        }
+        state.write(index);
+        for (List<UndoHistory.Edit> edits : List.of(undo, redo)) {
+            index.writeInt(edits.size());
+            for (UndoHistory.Edit edit : edits) {
+                long[] block = reuse == null ? null : reuse.edits.get(edit);
+                if (block == null) {
+                    progress.checkCancelled();
+                    byte[] bytes = encodeEdit(edit, history);
+                    stream.write(bytes);
+                    block = new long[]{position, bytes.length};
+                    position += bytes.length;
+                }
+                saved.edits.put(edit, block);
+                saved.liveBytes += block[1];
+                index.writeLong(block[0]);
+                index.writeInt((int) block[1]);
+            }
+        }
+        // Last, so files from before overviews (which end here) still open.
+        index.writeInt(saved.overviewLevel);
+        for (int tile = 0; tile < saved.overviewOffsets.length; tile++) {
+            index.writeLong(saved.overviewOffsets[tile]);
+            index.writeInt(saved.overviewLengths[tile]);
+        }
+        index.flush();
+        stream.write(indexBytes.toByteArray());
+        DataOutputStream trailer = new DataOutputStream(stream);
+        trailer.writeLong(position);
+        trailer.writeInt(indexBytes.size());
+        trailer.writeInt(END_MARKER);
+        trailer.flush();
+        saved.length = position + indexBytes.size() + TRAILER_LENGTH;
+        saved.liveBytes += MAGIC.length + indexBytes.size() + TRAILER_LENGTH;
+        return saved;
+    }
+
+    // Writes the overview tiles that can't be pointed at in reuse: those over an image tile whose hash changed. They are
+    // averaged down by an ImagePyramid of the image, the same way the canvas would, so a seeded pyramid shows exactly
+    // what one built from the image does.
+    private static long writeOverview(OutputStream stream, long position, ProjectFile reuse, ProjectFile saved,
+                                      BufferedImage image, JobProgress progress) throws IOException {
+        int level = overviewLevel(saved.width, saved.height);
+        if (level == 0) {
+            return position;
+        }
+        int width = (saved.width + (1 << level) - 1) >> level;
+        int height = (saved.height + (1 << level) - 1) >> level;
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int imageColumns = (saved.width + TILE_SIZE - 1) / TILE_SIZE;
+        int imageRows = (saved.height + TILE_SIZE - 1) / TILE_SIZE;
+        boolean reusable = reuse != null && reuse.overviewLevel == level;
+        saved.overviewLevel = level;
+        saved.overviewOffsets = new long[columns * rows];
+        saved.overviewLengths = new int[columns * rows];
+        ImagePyramid pyramid = null;
+        int[] row = null;
+        progress.beginPass(columns * rows);
+        for (int tile = 0; tile < columns * rows; tile++) {
+            progress.checkCancelled();
+            int tx = tile % columns;
+            int ty = tile / columns;
+            // An overview tile covers 2^level image tiles each way (tile sizes are the same).
+            boolean unchanged = reusable && reuse.overviewLengths[tile] > 0;
+            for (int y = ty << level; unchanged && y < Math.min((ty + 1) << level, imageRows); y++) {
+                for (int x = tx << level; unchanged && x < Math.min((tx + 1) << level, imageColumns); x++) {
+                    int imageTile = y * imageColumns + x;
+                    unchanged = unchanged(reuse, imageTile, saved.hashes[imageTile]);
+                }
+            }
+            if (unchanged) {
+                saved.overviewOffsets[tile] = reuse.overviewOffsets[tile];
+                saved.overviewLengths[tile] = reuse.overviewLengths[tile];
+            } else {
+                if (pyramid == null) {
+                    pyramid = new ImagePyramid(image);
+                }
+                int left = tx * TILE_SIZE;
+                int top = ty * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - left);
+                int h = Math.min(TILE_SIZE, height - top);
+                int[] pixels = new int[w * h];
+                for (int j = 0; j < h; j++) {
+                    row = pyramid.readRow(level, left, top + j, w, row);
+                    System.arraycopy(row, 0, pixels, j * w, w);
+                }
+                byte[] blob = encodeTile(pixels, w * h, w, saved.alpha);
+                stream.write(blob);
+                saved.overviewOffsets[tile] = position;
+                saved.overviewLengths[tile] = blob.length;
+                position += blob.length;
+            }
+            saved.liveBytes += saved.overviewLengths[tile];
+            progress.worked(1);
+        }
+        return position;
+    }
+
+    private static boolean unchanged(ProjectFile reuse, int tile, long hash) {
+        return reuse != null && reuse.lengths[tile] > 0 && reuse.hashes[tile] == hash;
+    }
+
+    // Reads the index and history of a project file and maps the tiles. The image decodes them as they are used.
+    static Opened open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long fileLength = in.length();
+            byte[] header = new byte[MAGIC.length];
+            in.readFully(header);
+            if (!Arrays.equals(header, MAGIC) || fileLength < MAGIC.length + TRAILER_LENGTH) {
+                throw new IOException("Not a PhotoEditor project: " + file);
+            }
+            in.seek(fileLength - TRAILER_LENGTH);
+            long indexOffset = in.readLong();
+            int indexLength = in.readInt();
+            if (in.readInt() != END_MARKER || indexOffset < MAGIC.length || indexOffset + indexLength > fileLength - TRAILER_LENGTH) {
+                throw new IOException("Project file is damaged (was a save interrupted?): " + file);
+            }
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(readBlock(in, indexOffset, indexLength)));
+            int width = index.readInt();
+            int height = index.readInt();
+            boolean alpha = index.readBoolean();
+            if (index.readInt() != TILE_SIZE) {
+                throw new IOException("Unsupported tile size in " + file);
+            }
+            ProjectFile project = new ProjectFile(file, width, height, alpha);
+            int longest = 0;
+            for (int tile = 0; tile < project.offsets.length; tile++) {
+                project.offsets[tile] = index.readLong();
+                project.lengths[tile] = index.readInt();
+                project.hashes[tile] = index.readLong();
+                project.liveBytes += project.lengths[tile];
+                longest = Math.max(longest, project.lengths[tile]);
+            }
+            State state = State.read(index);
+            List<List<UndoHistory.Edit>> histories = new ArrayList<>();
+            for (int stack = 0; stack < 2; stack++) {
+                List<UndoHistory.Edit> edits = new ArrayList<>();
+                int count = index.readInt();
+                for (int i = 0; i < count; i++) {
+                    long offset = index.readLong();
+                    int length = index.readInt();
+                    UndoHistory.Edit edit = decodeEdit(readBlock(in, offset, length));
+                    project.edits.put(edit, new long[]{offset, length});
+                    project.liveBytes += length;
+                    edits.add(edit);
+                }
+                histories.add(edits);
+            }
+            if (index.available() > 0) {
+                project.overviewLevel = index.readInt();
+                if (project.overviewLevel != overviewLevel(width, height)) {
+                    throw new IOException("Project file is damaged (overview level " + project.overviewLevel + "): " + file);
+                }
+                int overviewWidth = (width + (1 << project.overviewLevel) - 1) >> project.overviewLevel;
+                int overviewHeight = (height + (1 << project.overviewLevel) - 1) >> project.overviewLevel;
+                int tiles = ((overviewWidth + TILE_SIZE - 1) / TILE_SIZE) * ((overviewHeight + TILE_SIZE - 1) / TILE_SIZE);
+                project.overviewOffsets = new long[tiles];
+                project.overviewLengths = new int[tiles];
+                for (int tile = 0; tile < tiles; tile++) {
+                    project.overviewOffsets[tile] = index.readLong();
+                    project.overviewLengths[tile] = index.readInt();
+                    project.liveBytes += project.overviewLengths[tile];
+                    longest = Math.max(longest, project.overviewLengths[tile]);
+                }
+            }
+            project.length = fileLength;
+            project.liveBytes += MAGIC.length + indexLength + TRAILER_LENGTH;
+            Mapping mapping = new Mapping(file, in.getChannel(), fileLength, longest);
+            ProjectTiles tiles = new ProjectTiles(width, height, alpha, mapping, project.offsets, project.lengths, project.hashes);
+            BufferedImage image = MappedImage.wrap(width, height, alpha, tiles);
+            BufferedImage overview = null;
+            if (project.overviewLevel > 0) {
+                int level = project.overviewLevel;
+                int overviewWidth = (width + (1 << level) - 1) >> level;
+                int overviewHeight = (height + (1 << level) - 1) >> level;
+                // Never saved from, so the hashes are never asked for.
+                overview = MappedImage.wrap(overviewWidth, overviewHeight, alpha, new ProjectTiles(overviewWidth, overviewHeight,
+                        alpha, mapping, project.overviewOffsets, project.overviewLengths, new long[project.overviewOffsets.length]));
+            }
+            return new Opened(project, image, state, histories.get(0), histories.get(1), overview);
+        }
+    }
+
+    private static byte[] readBlock(RandomAccessFile in, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.seek(offset);
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Tiles are split into planes (alpha if there is one, then red, green, blue), and each row is stored as the
+    // difference from the pixel to its left. Smooth areas turn into runs of small repeating numbers, which LZ4 (having
+    // no entropy coder) needs to get anywhere on photos.
+    static byte[] encodeTile(int[] pixels, int count, int width, boolean alpha) {
+        int planes = alpha ? 4 : 3;
+        byte[] bytes = new byte[planes * count];
+        for (int plane = 0; plane < planes; plane++) {
+            int shift = (planes - 1 - plane) * 8;
+            int base = plane * count;
+            for (int row = 0; row < count; row += width) {
+                int left = 0;
+                for (int i = row; i < row + width; i++) {
+                    int value = pixels[i] >>> shift & 0xFF;
+                    bytes[base + i] = (byte) (value - left);
+                    left = value;
+                }
+            }
+        }
+        byte[] compressed = new byte[Lz4.maxCompressedLength(bytes.length)];
+        return Arrays.copyOf(compressed, Lz4.compress(bytes, bytes.length, compressed));
+    }
+
+    static int[] decodeTile(byte[] compressed, int count, int width, boolean alpha) throws IOException {
+        int planes = alpha ? 4 : 3;
+        byte[] bytes = new byte[planes * count];
+        Lz4.decompress(compressed, 0, compressed.length, bytes);
+        int[] pixels = new int[count];
+        if (!alpha) {
+            Arrays.fill(pixels, 0xFF000000);
+        }
+        for (int plane = 0; plane < planes; plane++) {
+            int shift = (planes - 1 - plane) * 8;
+            int base = plane * count;
+            for (int row = 0; row < count; row += width) {
+                int value = 0;
+                for (int i = row; i < row + width; i++) {
+                    value = (value + bytes[base + i]) & 0xFF;
+                    pixels[i] |= value << shift;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    // An edit's tiles keep all 32 bits, since undo writes them back exactly as they were.
+    private static byte[] encodeEdit(UndoHistory.Edit edit, UndoHistory history) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(edit.name);
+        out.writeInt(edit.beforeWidth);
+        out.writeInt(edit.beforeHeight);
+        out.writeBoolean(edit.beforeAlpha);
+        out.writeInt(edit.afterWidth);
+        out.writeInt(edit.afterHeight);
+        out.writeBoolean(edit.afterAlpha);
+        for (List<UndoHistory.Tile> tiles : List.of(edit.before, edit.after)) {
+            out.writeInt(tiles.size());
+            for (UndoHistory.Tile tile : tiles) {
+                out.writeInt(tile.x);
+                out.writeInt(tile.y);
+                out.writeInt(tile.width);
+                out.writeInt(tile.height);
+                byte[] compressed = encodeTile(tile.pixels(history), tile.width * tile.height, tile.width, true);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static UndoHistory.Edit decodeEdit(byte[] block) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        UndoHistory.Edit edit = new UndoHistory.Edit(in.readUTF(), in.readInt(), in.readInt(), in.readBoolean(),
+                in.readInt(), in.readInt(), in.readBoolean());
+        for (List<UndoHistory.Tile> tiles : List.of(edit.before, edit.after)) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int x = in.readInt();
+                int y = in.readInt();
+                int w = in.readInt();
+                int h = in.readInt();
+                byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+                tiles.add(UndoHistory.Tile.of(x, y, w, h, decodeTile(compressed, w * h, w, true)));
+            }
+        }
+        return edit;
+    }
+
+    // What goes with the image: colors, pen size and the view, so the session picks up where it was.
+    static final class State {
+        final Color filterColor;
+        final Color penColor;
+        final int penSize;
+        // 0 when the view was fitting the whole image in the window.
+        final double zoom;
+        // The image point in the middle of the view.
+        final double centreX;
+        final double centreY;
+
+        State(Color filterColor, Color penColor, int penSize, double zoom, double centreX, double centreY) {
+            this.filterColor = filterColor;
+            this.penColor = penColor;
+            this.penSize = penSize;
+            this.zoom = zoom;
+            this.centreX = centreX;
+            this.centreY = centreY;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(filterColor.getRGB());
+            out.writeInt(penColor.getRGB());
+            out.writeInt(penSize);
+            out.writeDouble(zoom);
+            out.writeDouble(centreX);
+            out.writeDouble(centreY);
+        }
+
+        private static State read(DataInputStream in) throws IOException {
+            return new State(new Color(in.readInt(), true), new Color(in.readInt(), true), in.readInt(),
+                    in.readDouble(), in.readDouble(), in.readDouble());
+        }
+    }
+
+    static final class Opened {
+        final ProjectFile project;
+        final BufferedImage image;
+        final State state;
+        final List<UndoHistory.Edit> undo;
+        final List<UndoHistory.Edit> redo;
+        // Level overviewLevel(width, height) of the image's pyramid, or null if the file has none.
+        final BufferedImage overview;
+
+        private Opened(ProjectFile project, BufferedImage image, State state, List<UndoHistory.Edit> undo,
+                       List<UndoHistory.Edit> redo, BufferedImage overview) {
+            this.project = project;
+            this.image = image;
+            this.state = state;
+            this.undo = undo;
+            this.redo = redo;
+            this.overview = overview;
+        }
+    }
+
+    // A read-only map of a project file. Mappings outlive the channel, and the file being replaced by a later save.
+    static final class Mapping {
+        private final File file;
+        private final ByteBuffer[] segments;
+
+        private Mapping(File file, FileChannel channel, long length, int longest) throws IOException {
+            this.file = file;
+            segments = new ByteBuffer[(int) ((length + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, (1L << SEGMENT_SHIFT) + longest));
+            }
+        }
+
+        byte[] read(long offset, int length) {
+            byte[] bytes = new byte[length];
+            int segment = (int) (offset >>> SEGMENT_SHIFT);
+            segments[segment].get((int) (offset - ((long) segment << SEGMENT_SHIFT)), bytes, 0, length);
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
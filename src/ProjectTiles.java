@@ -0,0 +1,174 @@
+// The pixels of an opened project file: a DataBuffer that decompresses each tile from the mapped file the first time
+// something reads it, so opening costs the index and showing a zoomed-in view costs the tiles on screen.
+//
+// Tiles that get written to (a scribble, an undo) stay decoded from then on, since they are the only copy of the
+// change. Clean ones can always be decoded again, so once more than -Dphotoeditor.projectCacheMB (default 256) of them
+// are decoded the least recently used are dropped.
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class ProjectTiles extends DataBuffer implements IntImages.BulkIntBuffer {
+    private static final long BUDGET = Long.getLong("photoeditor.projectCacheMB", 256) << 20;
+    private static final int TILE_SIZE = ProjectFile.TILE_SIZE;
+    private static final int TILE_SHIFT = Integer.numberOfTrailingZeros(TILE_SIZE);
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int columns;
+    private final ProjectFile.Mapping file;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] hashes;
+    private final AtomicReferenceArray<int[]> decoded;
+    // Written under the lock, but read without it on the fast paths (where a stale false only means taking the lock).
+    private final boolean[] dirty;
+    // Decoded clean tiles in access order, so the eldest is the least recently used.
+    private final LinkedHashMap<Integer, Boolean> clean = new LinkedHashMap<>(64, 0.75f, true);
+    private long cleanBytes;
+
+    ProjectTiles(int width, int height, boolean alpha, ProjectFile.Mapping file, long[] offsets, int[] lengths, long[] hashes) {
+        super(TYPE_INT, MappedImage.pixelCount(width, height));
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.file = file;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.hashes = hashes;
+        this.decoded = new AtomicReferenceArray<>(offsets.length);
+        this.dirty = new boolean[offsets.length];
+    }
+
+    // Whether tile still holds what the file has, so a save can copy its compressed bytes instead of encoding it.
+    synchronized boolean isClean(int tile) {
+        return !dirty[tile];
+    }
+
+    // The hash and compressed bytes of a clean tile, as stored in the file.
+    long hash(int tile) {
+        return hashes[tile];
+    }
+
+    byte[] compressed(int tile) {
+        return file.read(offsets[tile], lengths[tile]);
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        int y = i / width;
+        int x = i - y * width;
+        int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+        return tile(tile)[(y & TILE_MASK) * tileWidth(tile) + (x & TILE_MASK)];
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        int y = i / width;
+        int x = i - y * width;
+        int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+        writable(tile)[(y & TILE_MASK) * tileWidth(tile) + (x & TILE_MASK)] = val;
+    }
+
+    @Override
+    public void get(int index, int[] destination, int offset, int length) {
+        copy(index, destination, offset, length, false);
+    }
+
+    @Override
+    public void put(int index, int[] source, int offset, int length) {
+        copy(index, source, offset, length, true);
+    }
+
+    // Runs can cross tiles, and rows too; each piece is one arraycopy to or from a tile.
+    private void copy(int index, int[] pixels, int offset, int length, boolean write) {
+        while (length > 0) {
+            int y = index / width;
+            int x = index - y * width;
+            int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+            int run = Math.min(length, TILE_SIZE - (x & TILE_MASK));
+            int[] tilePixels = write ? writable(tile) : tile(tile);
+            int at = (y & TILE_MASK) * tileWidth(tile) + (x & TILE_MASK);
+            if (write) {
+                System.arraycopy(pixels, offset, tilePixels, at, run);
+            } else {
+                System.arraycopy(tilePixels, at, pixels, offset, run);
+            }
+            index += run;
+            offset += run;
+            length -= run;
+        }
+    }
+
+    private int tileWidth(int tile) {
+        return Math.min(TILE_SIZE, width - (tile % columns) * TILE_SIZE);
+    }
+
+    private int tileHeight(int tile) {
+        return Math.min(TILE_SIZE, height - (tile / columns) * TILE_SIZE);
+    }
+
+    private int[] tile(int tile) {
+        int[] pixels = decoded.get(tile);
+        if (pixels != null) {
+            if (!dirty[tile]) {
+                synchronized (this) {
+                    clean.get(tile);
+                }
+            }
+            return pixels;
+        }
+        int w = tileWidth(tile);
+        try {
+            pixels = ProjectFile.decodeTile(file.read(offsets[tile], lengths[tile]), w * tileHeight(tile), w, alpha);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Couldn't read tile " + tile + " of " + file, exception);
+        }
+        synchronized (this) {
+            // Another thread may have got there first.
+            int[] current = decoded.get(tile);
+            if (current != null) {
+                return current;
+            }
+            decoded.set(tile, pixels);
+            clean.put(tile, Boolean.TRUE);
+            cleanBytes += 4L * pixels.length;
+            Iterator<Integer> eldest = clean.keySet().iterator();
+            while (cleanBytes > BUDGET && eldest.hasNext()) {
+                int dropped = eldest.next();
+                eldest.remove();
+                cleanBytes -= 4L * tileWidth(dropped) * tileHeight(dropped);
+                decoded.set(dropped, null);
+            }
+        }
+        return pixels;
+    }
+
+    private int[] writable(int tile) {
+        int[] pixels = decoded.get(tile);
+        if (pixels != null && dirty[tile]) {
+            return pixels;
+        }
+        pixels = tile(tile);
+        synchronized (this) {
+            int[] current = decoded.get(tile);
+            if (current == null) {
+                // Dropped again between decoding and here.
+                decoded.set(tile, pixels);
+                current = pixels;
+            } else if (clean.remove(tile) != null) {
+                cleanBytes -= 4L * current.length;
+            }
+            dirty[tile] = true;
+            return current;
+        }
+    }
+}
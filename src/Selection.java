@@ -0,0 +1,84 @@
+// The part of the image edits apply to: a mask of how much each pixel is selected (0 to 255, antialiased at the edges
+// of the shape) covering just the shape's bounding box. Nothing outside the box is selected, so filters only need to
+// look at the box (plus whatever border they read) however big the image is.
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+final class Selection {
+    private final Shape shape;
+    private final Rectangle bounds;
+    private final byte[] mask;
+
+    private Selection(Shape shape, Rectangle bounds, byte[] mask) {
+        this.shape = shape;
+        this.bounds = bounds;
+        this.mask = mask;
+    }
+
+    // Selects the inside of shape (in image coordinates), clipped to a width x height image. Null if that leaves
+    // nothing selected.
+    static Selection of(Shape shape, int width, int height) {
+        Rectangle bounds = shape.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            return null;
+        }
+        BufferedImage coverage = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D pen = coverage.createGraphics();
+        pen.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        pen.setColor(Color.WHITE);
+        pen.fill(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y).createTransformedShape(shape));
+        pen.dispose();
+        byte[] mask = ((DataBufferByte) coverage.getRaster().getDataBuffer()).getData();
+        for (byte value : mask) {
+            if (value != 0) {
+                return new Selection(shape, bounds, mask);
+            }
+        }
+        return null;
+    }
+
+    Shape getShape() {
+        return shape;
+    }
+
+    // In image coordinates; always inside the image.
+    Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    // How selected the pixel at (x, y) is, from 0 (not at all) to 255 (fully).
+    int coverage(int x, int y) {
+        if (!bounds.contains(x, y)) {
+            return 0;
+        }
+        return mask[(y - bounds.y) * bounds.width + x - bounds.x] & 0xFF;
+    }
+
+    // Mixes w pixels of filtered into original (both row-major, w wide, starting at image position (x, y)) by how
+    // selected each pixel is, leaving the result in original.
+    void blend(int x, int y, int w, int h, int[] original, int[] filtered) {
+        for (int row = 0; row < h; row++) {
+            for (int i = row * w, column = 0; column < w; i++, column++) {
+                int amount = coverage(x + column, y + row);
+                if (amount == 255) {
+                    original[i] = filtered[i];
+                } else if (amount != 0) {
+                    original[i] = mix(original[i], filtered[i], amount);
+                }
+            }
+        }
+    }
+
+    private static int mix(int from, int to, int amount) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int a = from >>> shift & 0xFF;
+            int b = to >>> shift & 0xFF;
+            result |= (a + ((b - a) * amount + 127) / 255) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+// Per-channel summed-area table (integral image): entry (x, y) holds the sum of every pixel above and to the left of it,
+// so the sum over any rectangle takes four lookups whatever its size.
+//
+// Sums are kept in ints and allowed to wrap around. The four-lookup difference is still exact as long as the rectangle's
+// own sum fits in 32 bits (any rectangle up to about 16 million pixels), and it uses half the memory of longs.
+//
+// The last table built is cached, so repeated pixelates or box filters on the same image only build it once.
+// Every edit except scribbling makes a new image object, so the cache is keyed on the image; scribbling calls invalidate().
+// The table is three times the size of the image, so it is only softly held: the GC can drop it when memory runs low.
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+final class SummedAreaTable {
+    static final int RED = 0;
+    static final int GREEN = 1;
+    static final int BLUE = 2;
+
+    private static WeakReference<BufferedImage> cachedImage = new WeakReference<>(null);
+    private static SoftReference<SummedAreaTable> cachedTable = new SoftReference<>(null);
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int[][] sums;
+
+    private SummedAreaTable(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.sums = new int[3][stride * (height + 1)];
+    }
+
+    static SummedAreaTable of(BufferedImage image, JobProgress progress) {
+        synchronized (SummedAreaTable.class) {
+            SummedAreaTable cached = cachedTable.get();
+            if (cachedImage.get() == image && cached != null) {
+                return cached;
+            }
+        }
+        SummedAreaTable table = build(IntImages.toIntRGB(image), progress);
+        synchronized (SummedAreaTable.class) {
+            cachedImage = new WeakReference<>(image);
+            cachedTable = new SoftReference<>(table);
+        }
+        return table;
+    }
+
+    // Call after drawing into an image in place.
+    static synchronized void invalidate() {
+        cachedImage = new WeakReference<>(null);
+        cachedTable = new SoftReference<>(null);
+    }
+
+    private static SummedAreaTable build(BufferedImage image, JobProgress progress) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = IntImages.pixels(image);
+        SummedAreaTable table = new SummedAreaTable(width, height);
+        int stride = table.stride;
+        int[] red = table.sums[RED];
+        int[] green = table.sums[GREEN];
+        int[] blue = table.sums[BLUE];
+        progress.expectPasses(2);
+        // First each row becomes a running sum along the row...
+        TileExecutor.shared().forEachRowBand(width, height, 1, progress, (x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int in = y * width;
+                int out = (y + 1) * stride + 1;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[in + x];
+                    r += (pixel >> 16) & 0xFF;
+                    g += (pixel >> 8) & 0xFF;
+                    b += pixel & 0xFF;
+                    red[out + x] = r;
+                    green[out + x] = g;
+                    blue[out + x] = b;
+                }
+            }
+        });
+        // ...then each row adds the (already summed) row above it.
+        TileExecutor.shared().forEachColumnBand(width, height, 16, progress, (x0, y0, x1, y1) -> {
+            for (int y = 2; y <= height; y++) {
+                int row = y * stride + 1;
+                int above = row - stride;
+                for (int x = x0; x < x1; x++) {
+                    red[row + x] += red[above + x];
+                    green[row + x] += green[above + x];
+                    blue[row + x] += blue[above + x];
+                }
+            }
+        });
+        return table;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    // Sum of one channel over [x0, x1) x [y0, y1).
+    int sum(int channel, int x0, int y0, int x1, int y1) {
+        int[] table = sums[channel];
+        return table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    // Rounded mean color of [x0, x1) x [y0, y1) as opaque packed RGB.
+    int meanRGB(int x0, int y0, int x1, int y1) {
+        int count = (x1 - x0) * (y1 - y0);
+        int half = count / 2;
+        int r = (int) ((Integer.toUnsignedLong(sum(RED, x0, y0, x1, y1)) + half) / count);
+        int g = (int) ((Integer.toUnsignedLong(sum(GREEN, x0, y0, x1, y1)) + half) / count);
+        int b = (int) ((Integer.toUnsignedLong(sum(BLUE, x0, y0, x1, y1)) + half) / count);
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,134 @@
+// Splits an image into tiles (or whole-width row bands / whole-height column bands) and runs them on a ForkJoinPool.
+// Tiles are half-open rectangles [x0, x1) x [y0, y1). A task must only write pixels inside its own tile, then
+// the result doesn't depend on how many threads ran it.
+// Each call counts as one pass of its JobProgress: finished tiles are reported to it, and a cancelled job throws
+// CancellationException before its next tile starts.
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+final class TileExecutor {
+    interface TileTask {
+        void run(int x0, int y0, int x1, int y1);
+    }
+
+    // Can be set with -Dphotoeditor.parallelism=N, or from the Filter menu.
+    private static volatile TileExecutor shared = new TileExecutor(Integer.getInteger("photoeditor.parallelism",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static final int MAX_BAND_PIXELS = 1 << 18;
+
+    private final ForkJoinPool pool;
+
+    TileExecutor(int parallelism) {
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    static TileExecutor shared() {
+        return shared;
+    }
+
+    static void setParallelism(int parallelism) {
+        TileExecutor old = shared;
+        shared = new TileExecutor(parallelism);
+        old.pool.shutdown();
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    void forEachTile(int width, int height, int tileWidth, int tileHeight, TileTask task) {
+        forEachTile(width, height, tileWidth, tileHeight, JobProgress.NONE, task);
+    }
+
+    void forEachTile(int width, int height, int tileWidth, int tileHeight, JobProgress progress, TileTask task) {
+        int columns = (width + tileWidth - 1) / tileWidth;
+        int rows = (height + tileHeight - 1) / tileHeight;
+        int count = columns * rows;
+        if (count <= 0) {
+            return;
+        }
+        progress.checkCancelled();
+        progress.beginPass(count);
+        TileAction action = new TileAction(width, height, tileWidth, tileHeight, columns, progress, task, 0, count);
+        if (count == 1 || pool.getParallelism() == 1) {
+            action.runTiles();
+        } else {
+            pool.invoke(action);
+        }
+    }
+
+    // Full-width bands. Heights are a multiple of alignment (e.g. a pixelate block) except for the last band.
+    void forEachRowBand(int width, int height, int alignment, TileTask task) {
+        forEachRowBand(width, height, alignment, JobProgress.NONE, task);
+    }
+
+    void forEachRowBand(int width, int height, int alignment, JobProgress progress, TileTask task) {
+        forEachTile(width, height, width, bandSize(height, width, alignment), progress, task);
+    }
+
+    // Full-height bands, for passes where each column depends only on itself.
+    void forEachColumnBand(int width, int height, int alignment, TileTask task) {
+        forEachColumnBand(width, height, alignment, JobProgress.NONE, task);
+    }
+
+    void forEachColumnBand(int width, int height, int alignment, JobProgress progress, TileTask task) {
+        forEachTile(width, height, bandSize(width, height, alignment), height, progress, task);
+    }
+
+    // At least four bands per thread, so a slow band doesn't leave the other threads idle at the end, and no more than
+    // about MAX_BAND_PIXELS per band, so progress moves smoothly and Cancel is noticed quickly on big images.
+    private int bandSize(int length, int breadth, int alignment) {
+        int bands = pool.getParallelism() * 4;
+        int size = Math.max(1, (length + bands - 1) / bands);
+        size = Math.min(size, Math.max(1, MAX_BAND_PIXELS / Math.max(1, breadth)));
+        return ((size + alignment - 1) / alignment) * alignment;
+    }
+
+    private static class TileAction extends RecursiveAction {
+        private final int width;
+        private final int height;
+        private final int tileWidth;
+        private final int tileHeight;
+        private final int columns;
+        private final JobProgress progress;
+        private final TileTask task;
+        private final int from;
+        private final int to;
+
+        TileAction(int width, int height, int tileWidth, int tileHeight, int columns, JobProgress progress, TileTask task,
+                   int from, int to) {
+            this.width = width;
+            this.height = height;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.columns = columns;
+            this.progress = progress;
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileAction(width, height, tileWidth, tileHeight, columns, progress, task, from, middle),
+                        new TileAction(width, height, tileWidth, tileHeight, columns, progress, task, middle, to));
+                return;
+            }
+            runTiles();
+        }
+
+        void runTiles() {
+            for (int i = from; i < to; i++) {
+                progress.checkCancelled();
+                int x0 = (i % columns) * tileWidth;
+                int y0 = (i / columns) * tileHeight;
+                task.run(x0, y0, Math.min(x0 + tileWidth, width), Math.min(y0 + tileHeight, height));
+                progress.worked(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,637 @@
+// Undo/redo that only stores the tiles an edit changed.
+//
+// A filter makes a new image, so its edit is found by comparing the old and new image tile by tile (on the job's thread,
+// while the filter's output is still hot). A scribble stroke records each tile's old pixels just before the stroke first
+// touches it, so brush strokes cost only the tiles under the brush. Undo and redo write the stored tiles back into the
+// current image, which is O(changed tiles).
+//
+// New tiles are stored raw and then compressed on a background thread. When the history goes over its memory budget,
+// that thread also writes the oldest edits' compressed tiles to a temp file (or drops the edits, if spilling is turned
+// off). The temp file is emptied and deleted again once none of its tiles are still in the history.
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class UndoHistory {
+    static final int TILE_SIZE = 128;
+
+    private final long memoryBudget;
+    private final boolean spillToDisk;
+    private final Deque<Edit> undoStack = new ArrayDeque<>();
+    private final Deque<Edit> redoStack = new ArrayDeque<>();
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PhotoEditor undo compression");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private File spillPath;
+    private FileChannel spillFile;
+    private long spillEnd;
+    // Tiles in the spill file (or on their way there) that belong to edits still in the history.
+    private int spilledTiles;
+    private long memoryUsed;
+
+    UndoHistory(long memoryBudget, boolean spillToDisk) {
+        this.memoryBudget = memoryBudget;
+        this.spillToDisk = spillToDisk;
+    }
+
+    // Budget from -Dphotoeditor.undoBudgetMB (default 256), spilling from -Dphotoeditor.undoSpill (default true).
+    static UndoHistory fromSystemProperties() {
+        long budget = Long.getLong("photoeditor.undoBudgetMB", 256) * 1024 * 1024;
+        String spill = System.getProperty("photoeditor.undoSpill", "true");
+        return new UndoHistory(budget, Boolean.parseBoolean(spill));
+    }
+
+    // Works out which tiles differ between two images. Safe to call off the EDT.
+    static Edit diff(String name, BufferedImage before, BufferedImage after) {
+        return diff(name, before, after, new Rectangle(0, 0, after.getWidth(), after.getHeight()));
+    }
+
+    // The same, when the images are known to be identical outside area: only the tiles under it are compared.
+    static Edit diff(String name, BufferedImage before, BufferedImage after, Rectangle area) {
+        // Memory-mapped images are compared a tile at a time through readRect rather than copied onto the heap.
+        boolean onHeap = !MappedImage.isMapped(before) && !MappedImage.isMapped(after);
+        BufferedImage oldImage = onHeap ? IntImages.toIntRGB(before) : before;
+        BufferedImage newImage = onHeap ? IntImages.toIntRGB(after) : after;
+        Edit edit = new Edit(name, oldImage, newImage);
+        int width = newImage.getWidth();
+        int height = newImage.getHeight();
+        if (oldImage.getWidth() != width || oldImage.getHeight() != height) {
+            // A different size means the whole image is replaced either way.
+            edit.before.addAll(Tile.all(oldImage));
+            edit.after.addAll(Tile.all(newImage));
+            return edit;
+        }
+        // Whole tiles, so they line up with the ones the rest of the history uses.
+        Rectangle bounds = area.intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            return edit;
+        }
+        int left = bounds.x / TILE_SIZE * TILE_SIZE;
+        int top = bounds.y / TILE_SIZE * TILE_SIZE;
+        int right = Math.min(width, (bounds.x + bounds.width + TILE_SIZE - 1) / TILE_SIZE * TILE_SIZE);
+        int bottom = Math.min(height, (bounds.y + bounds.height + TILE_SIZE - 1) / TILE_SIZE * TILE_SIZE);
+        ConcurrentLinkedQueue<Tile[]> changed = new ConcurrentLinkedQueue<>();
+        if (onHeap) {
+            int[] oldPixels = IntImages.pixels(oldImage);
+            int[] newPixels = IntImages.pixels(newImage);
+            forEachTile(left, top, right, bottom, (x0, y0, x1, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    int row = y * width;
+                    if (!Arrays.equals(oldPixels, row + x0, row + x1, newPixels, row + x0, row + x1)) {
+                        changed.add(new Tile[]{Tile.copy(oldImage, x0, y0, x1, y1), Tile.copy(newImage, x0, y0, x1, y1)});
+                        return;
+                    }
+                }
+            });
+        } else {
+            forEachTile(left, top, right, bottom, (x0, y0, x1, y1) -> {
+                Tile oldTile = Tile.copy(oldImage, x0, y0, x1, y1);
+                Tile newTile = Tile.copy(newImage, x0, y0, x1, y1);
+                if (!Arrays.equals(oldTile.raw, newTile.raw)) {
+                    changed.add(new Tile[]{oldTile, newTile});
+                }
+            });
+        }
+        for (Tile[] pair : changed) {
+            edit.before.add(pair[0]);
+            edit.after.add(pair[1]);
+        }
+        return edit;
+    }
+
+    // The undo tiles covering [left, right) x [top, bottom), where left and top are on tile boundaries.
+    private static void forEachTile(int left, int top, int right, int bottom, TileExecutor.TileTask task) {
+        TileExecutor.shared().forEachTile(right - left, bottom - top, TILE_SIZE, TILE_SIZE,
+                (x0, y0, x1, y1) -> task.run(left + x0, top + y0, left + x1, top + y1));
+    }
+
+    // Starts recording a scribble stroke on image. Call touch() before drawing each segment, then finish().
+    static Stroke beginStroke(String name, BufferedImage image) {
+        return new Stroke(name, image);
+    }
+
+    synchronized void push(Edit edit) {
+        if (edit.isEmpty()) {
+            return;
+        }
+        undoStack.push(edit);
+        for (Edit dropped : redoStack) {
+            memoryUsed -= dropped.memory();
+            discard(dropped);
+        }
+        redoStack.clear();
+        memoryUsed += edit.memory();
+        compressor.execute(() -> {
+            compress(edit);
+            trim();
+        });
+    }
+
+    synchronized boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    synchronized boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    synchronized void clear() {
+        undoStack.forEach(this::discard);
+        redoStack.forEach(this::discard);
+        undoStack.clear();
+        redoStack.clear();
+        memoryUsed = 0;
+    }
+
+    // Gets the most recent edit ready to put back: its tiles are inflated (or read back from the spill file) here, so
+    // call it off the EDT. Null if there is nothing to undo. Nothing changes until apply().
+    Step prepareUndo(BufferedImage current) throws IOException {
+        return prepare(true, current);
+    }
+
+    Step prepareRedo(BufferedImage current) throws IOException {
+        return prepare(false, current);
+    }
+
+    private Step prepare(boolean undo, BufferedImage current) throws IOException {
+        Edit edit;
+        synchronized (this) {
+            edit = undo ? undoStack.peek() : redoStack.peek();
+        }
+        if (edit == null) {
+            return null;
+        }
+        int width = undo ? edit.beforeWidth : edit.afterWidth;
+        int height = undo ? edit.beforeHeight : edit.afterHeight;
+        boolean alpha = undo ? edit.beforeAlpha : edit.afterAlpha;
+        List<Tile> tiles = undo ? edit.before : edit.after;
+        int[][] pixels = new int[tiles.size()][];
+        try {
+            TileExecutor.shared().forEachTile(tiles.size(), 1, 1, 1, (x0, y0, x1, y1) -> {
+                try {
+                    pixels[x0] = tiles.get(x0).pixels(this);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        BufferedImage resized = null;
+        if (current.getWidth() != width || current.getHeight() != height || current.getColorModel().hasAlpha() != alpha) {
+            // A new image nothing else can see yet, so it can be filled in here too.
+            resized = MappedImage.create(width, height, alpha);
+            for (int i = 0; i < tiles.size(); i++) {
+                Tile tile = tiles.get(i);
+                IntImages.writeRect(resized, tile.x, tile.y, tile.width, tile.height, pixels[i]);
+            }
+        }
+        return new Step(edit, undo, tiles, pixels, resized);
+    }
+
+    // Moves a prepared step's edit to the other stack and writes its tiles into current. Returns the image to show:
+    // current itself (changed in place) when the size is unchanged, otherwise a new image. Returns null, changing
+    // nothing, if the history moved on since the step was prepared.
+    synchronized BufferedImage apply(Step step, BufferedImage current) {
+        Deque<Edit> from = step.undo ? undoStack : redoStack;
+        Deque<Edit> to = step.undo ? redoStack : undoStack;
+        if (from.peek() != step.edit) {
+            return null;
+        }
+        to.push(from.pop());
+        if (step.resized != null) {
+            return step.resized;
+        }
+        for (int i = 0; i < step.tiles.size(); i++) {
+            Tile tile = step.tiles.get(i);
+            IntImages.writeRect(current, tile.x, tile.y, tile.width, tile.height, step.pixels[i]);
+        }
+        return current;
+    }
+
+    // The edits undo and redo would step through, next one first, for saving in a project file.
+    synchronized List<Edit> undoEdits() {
+        return new ArrayList<>(undoStack);
+    }
+
+    synchronized List<Edit> redoEdits() {
+        return new ArrayList<>(redoStack);
+    }
+
+    // Replaces the history with edits read back from a project file, in the same order undoEdits() and redoEdits()
+    // give them.
+    synchronized void load(List<Edit> undo, List<Edit> redo) {
+        clear();
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            undoStack.push(undo.get(i));
+        }
+        for (int i = redo.size() - 1; i >= 0; i--) {
+            redoStack.push(redo.get(i));
+        }
+        for (Edit edit : undoStack) {
+            memoryUsed += edit.memory();
+            compressor.execute(() -> compress(edit));
+        }
+        for (Edit edit : redoStack) {
+            memoryUsed += edit.memory();
+            compressor.execute(() -> compress(edit));
+        }
+        compressor.execute(this::trim);
+    }
+
+    private void compress(Edit edit) {
+        for (Tile tile : edit.tiles()) {
+            int[] raw = tile.raw;
+            if (raw == null) {
+                continue;
+            }
+            byte[] compressed = Tile.deflate(raw);
+            synchronized (this) {
+                if (tile.raw != null) {
+                    if (!edit.discarded) {
+                        memoryUsed += compressed.length - tile.memory();
+                    }
+                    tile.compressed = compressed;
+                    tile.raw = null;
+                }
+            }
+        }
+    }
+
+    // Moves the oldest edits out of memory until the history fits its budget again. Runs on the compressor thread and
+    // only spills tiles that are already compressed; the rest get their turn when the compressor has been through them.
+    // The file writes happen outside the lock so the EDT never waits on the disk.
+    private void trim() {
+        while (true) {
+            Edit oldest = null;
+            List<Tile> tiles = new ArrayList<>();
+            long offset;
+            synchronized (this) {
+                Iterator<Edit> oldestFirst = undoStack.descendingIterator();
+                while (oldest == null && memoryUsed > memoryBudget && oldestFirst.hasNext()) {
+                    Edit edit = oldestFirst.next();
+                    if (edit == undoStack.peek()) {
+                        // Always keep the latest edit undoable.
+                        break;
+                    }
+                    if (!spillToDisk) {
+                        oldestFirst.remove();
+                        memoryUsed -= edit.memory();
+                        discard(edit);
+                        continue;
+                    }
+                    for (Tile tile : edit.tiles()) {
+                        if (tile.compressed != null) {
+                            tiles.add(tile);
+                        }
+                    }
+                    if (!tiles.isEmpty()) {
+                        oldest = edit;
+                    }
+                }
+                if (oldest == null) {
+                    return;
+                }
+                offset = spillEnd;
+                for (Tile tile : tiles) {
+                    spillEnd += tile.compressed.length;
+                }
+                spilledTiles += tiles.size();
+            }
+            boolean written = spill(tiles, offset);
+            synchronized (this) {
+                if (written && !oldest.discarded) {
+                    for (Tile tile : tiles) {
+                        memoryUsed -= tile.compressed.length;
+                        tile.spillOffset = offset;
+                        tile.spillLength = tile.compressed.length;
+                        tile.compressed = null;
+                        offset += tile.spillLength;
+                    }
+                } else {
+                    spilledTiles -= tiles.size();
+                    if (!written && undoStack.remove(oldest)) {
+                        memoryUsed -= oldest.memory();
+                        discard(oldest);
+                    }
+                    releaseSpillFile();
+                }
+            }
+        }
+    }
+
+    private boolean spill(List<Tile> tiles, long offset) {
+        try {
+            FileChannel file;
+            synchronized (this) {
+                if (spillFile == null) {
+                    spillPath = File.createTempFile("photoeditor-undo", ".tmp");
+                    spillPath.deleteOnExit();
+                    spillFile = FileChannel.open(spillPath.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                file = spillFile;
+            }
+            for (Tile tile : tiles) {
+                ByteBuffer bytes = ByteBuffer.wrap(tile.compressed);
+                while (bytes.hasRemaining()) {
+                    offset += file.write(bytes, offset);
+                }
+            }
+            return true;
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            return false;
+        }
+    }
+
+    // Marks an edit as gone from the history, giving back its share of the spill file.
+    private void discard(Edit edit) {
+        edit.discarded = true;
+        for (Tile tile : edit.tiles()) {
+            if (tile.spillOffset >= 0) {
+                spilledTiles--;
+            }
+        }
+        releaseSpillFile();
+    }
+
+    // Deletes the spill file once nothing in the history needs it, so a long session doesn't keep growing it.
+    private void releaseSpillFile() {
+        if (spilledTiles > 0 || spillFile == null) {
+            return;
+        }
+        try {
+            spillFile.close();
+            Files.deleteIfExists(spillPath.toPath());
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+        spillFile = null;
+        spillPath = null;
+        spillEnd = 0;
+    }
+
+    private synchronized byte[] readSpilled(Tile tile) throws IOException {
+        if (spillFile == null) {
+            throw new IOException("The undo history was cleared");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(tile.spillLength);
+        long offset = tile.spillOffset;
+        while (bytes.hasRemaining()) {
+            int read = spillFile.read(bytes, offset);
+            if (read < 0) {
+                throw new IOException("Undo spill file is truncated");
+            }
+            offset += read;
+        }
+        return bytes.array();
+    }
+
+    static final class Edit {
+        final String name;
+        final int beforeWidth;
+        final int beforeHeight;
+        final boolean beforeAlpha;
+        final int afterWidth;
+        final int afterHeight;
+        final boolean afterAlpha;
+        final List<Tile> before = new ArrayList<>();
+        final List<Tile> after = new ArrayList<>();
+        // Set once the edit has left the history, so late background compression doesn't count its memory.
+        private boolean discarded;
+
+        Edit(String name, BufferedImage before, BufferedImage after) {
+            this(name, before.getWidth(), before.getHeight(), before.getColorModel().hasAlpha(),
+                    after.getWidth(), after.getHeight(), after.getColorModel().hasAlpha());
+        }
+
+        Edit(String name, int beforeWidth, int beforeHeight, boolean beforeAlpha, int afterWidth, int afterHeight, boolean afterAlpha) {
+            this.name = name;
+            this.beforeWidth = beforeWidth;
+            this.beforeHeight = beforeHeight;
+            this.beforeAlpha = beforeAlpha;
+            this.afterWidth = afterWidth;
+            this.afterHeight = afterHeight;
+            this.afterAlpha = afterAlpha;
+        }
+
+        boolean isEmpty() {
+            return before.isEmpty() && after.isEmpty() && beforeWidth == afterWidth && beforeHeight == afterHeight;
+        }
+
+        // The rectangles this edit changed, in image coordinates.
+        List<Rectangle> changedAreas() {
+            List<Rectangle> areas = new ArrayList<>();
+            for (Tile tile : after) {
+                areas.add(new Rectangle(tile.x, tile.y, tile.width, tile.height));
+            }
+            return areas;
+        }
+
+        List<Tile> tiles() {
+            List<Tile> tiles = new ArrayList<>(before);
+            tiles.addAll(after);
+            return tiles;
+        }
+
+        long memory() {
+            long memory = 0;
+            for (Tile tile : before) {
+                memory += tile.memory();
+            }
+            for (Tile tile : after) {
+                memory += tile.memory();
+            }
+            return memory;
+        }
+    }
+
+    // An undo or redo with its tiles already decoded, from prepareUndo() or prepareRedo().
+    static final class Step {
+        private final Edit edit;
+        private final boolean undo;
+        private final List<Tile> tiles;
+        private final int[][] pixels;
+        // Set when the step changes the image's size, already filled in.
+        private final BufferedImage resized;
+
+        private Step(Edit edit, boolean undo, List<Tile> tiles, int[][] pixels, BufferedImage resized) {
+            this.edit = edit;
+            this.undo = undo;
+            this.tiles = tiles;
+            this.pixels = pixels;
+            this.resized = resized;
+        }
+
+        // The image the step makes when it changes the size, otherwise null.
+        BufferedImage resizedImage() {
+            return resized;
+        }
+
+        // The rectangles the step writes to, in image coordinates.
+        List<Rectangle> changedAreas() {
+            List<Rectangle> areas = new ArrayList<>();
+            for (Tile tile : tiles) {
+                areas.add(new Rectangle(tile.x, tile.y, tile.width, tile.height));
+            }
+            return areas;
+        }
+    }
+
+    static final class Stroke {
+        private final String name;
+        private final BufferedImage image;
+        private final Map<Long, Tile> before = new LinkedHashMap<>();
+
+        private Stroke(String name, BufferedImage image) {
+            this.name = name;
+            this.image = image;
+        }
+
+        BufferedImage getImage() {
+            return image;
+        }
+
+        // Call with the area about to be drawn on, before drawing.
+        void touch(Rectangle area) {
+            Rectangle bounds = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+            if (bounds.isEmpty()) {
+                return;
+            }
+            for (int ty = bounds.y / TILE_SIZE; ty <= (bounds.y + bounds.height - 1) / TILE_SIZE; ty++) {
+                for (int tx = bounds.x / TILE_SIZE; tx <= (bounds.x + bounds.width - 1) / TILE_SIZE; tx++) {
+                    long key = (long) ty << 32 | tx;
+                    if (!before.containsKey(key)) {
+                        int x0 = tx * TILE_SIZE;
+                        int y0 = ty * TILE_SIZE;
+                        before.put(key, Tile.copy(image, x0, y0, Math.min(x0 + TILE_SIZE, image.getWidth()),
+                                Math.min(y0 + TILE_SIZE, image.getHeight())));
+                    }
+                }
+            }
+        }
+
+        Edit finish() {
+            Edit edit = new Edit(name, image, image);
+            for (Tile old : before.values()) {
+                edit.before.add(old);
+                edit.after.add(Tile.copy(image, old.x, old.y, old.x + old.width, old.y + old.height));
+            }
+            return edit;
+        }
+    }
+
+    static final class Tile {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        // Exactly one of these holds the pixels at any time (spilled tiles keep only an offset into the spill file).
+        private volatile int[] raw;
+        private volatile byte[] compressed;
+        private long spillOffset = -1;
+        private int spillLength;
+
+        private Tile(int x, int y, int width, int height, int[] raw) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.raw = raw;
+        }
+
+        // A tile of pixels from somewhere other than an image (a project file, say).
+        static Tile of(int x, int y, int width, int height, int[] pixels) {
+            return new Tile(x, y, width, height, pixels);
+        }
+
+        static Tile copy(BufferedImage image, int x0, int y0, int x1, int y1) {
+            int[] raw = IntImages.readRect(image, x0, y0, x1 - x0, y1 - y0, null);
+            return new Tile(x0, y0, x1 - x0, y1 - y0, raw);
+        }
+
+        static List<Tile> all(BufferedImage image) {
+            List<Tile> tiles = new ArrayList<>();
+            for (int y = 0; y < image.getHeight(); y += TILE_SIZE) {
+                for (int x = 0; x < image.getWidth(); x += TILE_SIZE) {
+                    tiles.add(copy(image, x, y, Math.min(x + TILE_SIZE, image.getWidth()), Math.min(y + TILE_SIZE, image.getHeight())));
+                }
+            }
+            return tiles;
+        }
+
+        long memory() {
+            int[] pixels = raw;
+            if (pixels != null) {
+                return 4L * pixels.length;
+            }
+            byte[] bytes = compressed;
+            return bytes != null ? bytes.length : 0;
+        }
+
+        int[] pixels(UndoHistory history) throws IOException {
+            int[] pixels = raw;
+            if (pixels != null) {
+                return pixels;
+            }
+            byte[] bytes = compressed;
+            if (bytes == null) {
+                bytes = history.readSpilled(this);
+            }
+            return inflate(bytes, width * height);
+        }
+
+        static byte[] deflate(int[] pixels) {
+            ByteBuffer buffer = ByteBuffer.allocate(pixels.length * 4);
+            buffer.asIntBuffer().put(pixels);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(buffer.array());
+            deflater.finish();
+            byte[] chunk = new byte[Math.max(64, pixels.length)];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            deflater.end();
+            return out.toByteArray();
+        }
+
+        static int[] inflate(byte[] bytes, int count) throws IOException {
+            byte[] raw = new byte[count * 4];
+            Inflater inflater = new Inflater();
+            inflater.setInput(bytes);
+            try {
+                int read = 0;
+                while (read < raw.length && !inflater.finished()) {
+                    read += inflater.inflate(raw, read, raw.length - read);
+                }
+            } catch (DataFormatException exception) {
+                throw new IOException("Corrupt undo tile", exception);
+            } finally {
+                inflater.end();
+            }
+            int[] pixels = new int[count];
+            ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+            return pixels;
+        }
+    }
+}